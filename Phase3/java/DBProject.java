@@ -16,10 +16,64 @@ import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -34,6 +88,45 @@ public class DBProject {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // the connection the current thread uses instead, see connection()
+   private final ThreadLocal<Connection> _boundConnection = new ThreadLocal<Connection>();
+
+   // admission control lanes the menu operations run on
+   private Lane _transactionLane = null;
+   private Lane _reportLane = null;
+
+   // connection settings, kept so that extra connections can be opened later.
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // shard connections, empty when the whole schema lives in one database.
+   private final List<DBProject> _shards = new ArrayList<DBProject>();
+   private ShardRouter _router = null;
+   private ExecutorService _scatterPool = null;
+
+   // columnar copy of Booking for analytic scans, built on first use and appended to by bookRoom.
+   private BookingColumnStore _bookingStore = null;
+
+   // booking aggregates by hotel, month and room type, built on first use.
+   private BookingCube _bookingCube = null;
+
+   // approximate price, customer and heavy hitter summaries, built on first use.
+   private BookingSketches _sketches = null;
+
+   // booked stays per room, built on first use.
+   private StayIndex _stays = null;
+
+   // append-only log of every insert, enabled with -Djournal.dir.
+   private ChangeJournal _journal = null;
+
+   // refreshes the materialized views of views.sql, enabled with -Dviews=on.
+   private ViewRefresher _views = null;
+
+   // statements slower than -Dslow.ms are logged and explained, shared by all shards.
+   private static final SlowOperationLog _slowLog = SlowOperationLog.fromSystemProperties();
+   private Connection _explainConnection = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -51,14 +144,46 @@ public class DBProject {
    public DBProject (String dbname, String dbport, String user, String passwd) throws SQLException {
 
       System.out.print("Connecting to database...");
+      this._user = user;
+      this._passwd = passwd;
       try{
          // constructs the connection URL
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
+         this._url = url;
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
          System.out.println("Done");
+
+         // -Dshards=host:port/db,host:port/db splits the hotels over several databases
+         String shardList = System.getProperty("shards");
+         if (shardList != null && !shardList.trim().isEmpty()) {
+            for (String shard : shardList.split(",")) {
+               String shardUrl = "jdbc:postgresql://" + shard.trim();
+               System.out.println ("Shard URL: " + shardUrl);
+               this._shards.add(new DBProject(DriverManager.getConnection(shardUrl, user, passwd), shardUrl, user, passwd));
+            }
+            this._router = new ShardRouter(this._shards.size(), System.getProperty("shardRanges"));
+            this._scatterPool = Executors.newFixedThreadPool(this._shards.size());
+         }
+
+         String journalDir = System.getProperty("journal.dir");
+         if (journalDir != null) {
+            this._journal = new ChangeJournal(new File(journalDir),
+                                              Integer.getInteger("journal.segmentBytes", 16 << 20),
+                                              Integer.getInteger("journal.commitMicros", 2000));
+            System.out.println("Change journal: " + journalDir);
+         }
+
+         // -Dlane.<name>.threads, .queue and .timeoutMs size the lanes
+         this._transactionLane = Lane.fromSystemProperties("transaction", 4, 16, 10000);
+         this._reportLane = Lane.fromSystemProperties("report", 2, 4, 120000);
+
+         if ("on".equals(System.getProperty("views"))) {
+            this._views = new ViewRefresher(this);
+            this._views.start();
+         }
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -66,6 +191,363 @@ public class DBProject {
       }//end catch
    }//end DBProject
 
+   /**
+    * Wraps an already opened connection, used for shards.
+    */
+   private DBProject (Connection connection, String url, String user, String passwd) {
+      this._connection = connection;
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+   }//end DBProject
+
+   /**
+    * Maps a hotelID to the shard holding its rooms, bookings, repairs and
+    * assignments.  With range routing, shard i holds the hotels up to and
+    * including the i-th bound and the last shard holds the rest; otherwise
+    * the hotelID is hashed (modulo) over the shards.
+    */
+   static class ShardRouter {
+      private final int shardCount;
+      private final long[] upperBounds;
+
+      ShardRouter(int shardCount, String ranges) {
+         this.shardCount = shardCount;
+         if (ranges == null || ranges.trim().isEmpty()) {
+            this.upperBounds = null;
+         } else {
+            String[] bounds = ranges.split(",");
+            if (bounds.length != shardCount - 1) {
+               throw new IllegalArgumentException("shardRanges needs " + (shardCount - 1) + " bounds for " + shardCount + " shards");
+            }
+            this.upperBounds = new long[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+               this.upperBounds[i] = Long.parseLong(bounds[i].trim());
+            }
+         }
+      }
+
+      int shardFor(long hotelID) {
+         if (upperBounds == null) {
+            return (int) Math.floorMod(hotelID, (long) shardCount);
+         }
+         for (int i = 0; i < upperBounds.length; i++) {
+            if (hotelID <= upperBounds[i]) {
+               return i;
+            }
+         }
+         return shardCount - 1;
+      }
+   }//end ShardRouter
+
+   /**
+    * Returns the database that owns the given hotel, this object itself when
+    * the deployment is not sharded.
+    *
+    * @param hotelID the hotel the operation works on
+    */
+   public DBProject forHotel(String hotelID) {
+      if (this._shards.isEmpty()) {
+         return this;
+      }
+      return this._shards.get(this._router.shardFor(Long.parseLong(hotelID.trim())));
+   }//end forHotel
+
+   /**
+    * Returns every database of the deployment, one entry when not sharded.
+    */
+   public List<DBProject> shards() {
+      if (this._shards.isEmpty()) {
+         return Collections.singletonList(this);
+      }
+      return this._shards;
+   }//end shards
+
+   /**
+    * Work to run against one shard.
+    */
+   interface ShardCall<T> {
+      T call(DBProject shard) throws SQLException;
+   }
+
+   /**
+    * Runs the call against every shard in parallel and returns the result of
+    * each shard, in shard order.
+    *
+    * @throws java.sql.SQLException when the call failed on any shard
+    */
+   public <T> List<T> onEveryShard(final ShardCall<T> call) throws SQLException {
+      if (Lane.isRouted()) {
+         return onLane(() -> onEveryShard(call));
+      }
+      List<T> parts = new ArrayList<T>();
+      if (this._shards.isEmpty()) {
+         parts.add(call.call(this));
+         return parts;
+      }
+      List<Future<T>> pending = new ArrayList<Future<T>>();
+      final String operation = _slowLog == null ? null : SlowOperationLog.currentOperation();
+      // work for a lane stays on the lane's own threads and connections
+      Lane lane = Lane.CURRENT.get();
+      ExecutorService pool = lane == null ? this._scatterPool : lane.scatterPool(this._shards.size());
+      for (final DBProject shard : this._shards) {
+         final Connection connection = shard.connection();
+         pending.add(pool.submit(() -> {
+            SlowOperationLog.OPERATION.set(operation);
+            shard._boundConnection.set(connection);
+            try {
+               return call.call(shard);
+            } finally {
+               shard._boundConnection.remove();
+            }
+         }));
+      }
+      try {
+         for (Future<T> part : pending) {
+            parts.add(part.get());
+         }
+      } catch (Exception e) {
+         if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+         }
+         Throwable cause = e.getCause() != null ? e.getCause() : e;
+         // a shard's own error keeps its SQLState, so callers can still tell conflicts and missing rows apart
+         if (cause instanceof SQLException) {
+            throw (SQLException) cause;
+         }
+         SQLException failed = new SQLException("Scatter query failed: " + cause.getMessage());
+         failed.initCause(cause);
+         throw failed;
+      }
+      return parts;
+   }//end onEveryShard
+
+   /**
+    * Runs the same query on every shard in parallel and returns the results
+    * of each shard, in shard order.
+    *
+    * @param query the input query String
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<List<String>>> scatterGather(final String query) throws SQLException {
+      return onEveryShard(shard -> shard.executeQueryAndReturnResult(query));
+   }//end scatterGather
+
+   /**
+    * Same as scatterGather, with typed rows.
+    */
+   public List<List<Row>> scatterGatherRows(final String query) throws SQLException {
+      return onEveryShard(shard -> shard.executeQueryAndReturnRows(query));
+   }//end scatterGatherRows
+
+   /**
+    * Returns the connection the current thread uses for this database: the
+    * lane's own connection on a lane worker (opened on first use), the one
+    * handed over by onEveryShard on a scatter thread, and the main
+    * connection otherwise.
+    */
+   Connection connection() throws SQLException {
+      Connection connection = this._boundConnection.get();
+      if (connection != null) {
+         return connection;
+      }
+      Lane lane = Lane.CURRENT.get();
+      if (lane == null) {
+         return this._connection;
+      }
+      connection = lane.open(this);
+      this._boundConnection.set(connection);
+      return connection;
+   }//end connection
+
+   /**
+    * Runs a menu operation for the given lane.  The operation itself, with
+    * its prompts, runs on this thread, so no lane thread or connection is
+    * held while the user types; each statement it issues is run on the lane
+    * by onLane.  When the lane's queue is full the statement is shed and the
+    * operation reports "The ... lane is full".
+    */
+   public void dispatch(Lane lane, final Runnable operation) {
+      Lane.ROUTED.set(lane);
+      try {
+         operation.run();
+      } finally {
+         Lane.ROUTED.remove();
+      }
+   }//end dispatch
+
+   /**
+    * Runs database work of the menu operation on this thread on its lane
+    * and waits for the result; runs it directly when there is no lane to
+    * hand it to, or when already on a lane worker.  Work that uses a
+    * connection for several statements, such as a transaction, goes through
+    * here as one piece so it stays on one worker and its connection.
+    *
+    * @throws java.sql.SQLException when the work failed or the lane is full
+    */
+   public <T> T onLane(final Callable<T> work) throws SQLException {
+      Lane lane = Lane.ROUTED.get();
+      if (lane == null || Lane.CURRENT.get() != null) {
+         try {
+            return work.call();
+         } catch (SQLException e) {
+            throw e;
+         } catch (Exception e) {
+            throw new SQLException(String.valueOf(e.getMessage()));
+         }
+      }
+      final String operation = _slowLog == null ? null : SlowOperationLog.currentOperation();
+      return lane.run(() -> {
+         SlowOperationLog.OPERATION.set(operation);
+         try {
+            return work.call();
+         } finally {
+            SlowOperationLog.OPERATION.remove();
+         }
+      });
+   }//end onLane
+
+   /**
+    * Opens an extra connection to the same database, for work that runs on
+    * other threads.  The caller closes it.
+    *
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openConnection
+
+   /**
+    * Runs an update on every shard.  Used for the tables every shard keeps a
+    * full copy of (Customer, MaintenanceCompany).
+    *
+    * @param sql the input SQL String
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdateOnAllShards(String sql) throws SQLException {
+      for (DBProject shard : shards()) {
+         shard.executeUpdate(sql);
+      }
+   }//end executeUpdateOnAllShards
+
+   /**
+    * Runs a CheckedInsert on every shard, for the tables every shard keeps a
+    * full copy of.
+    *
+    * @return the row inserted on the first shard
+    * @throws java.sql.SQLException when the insert failed on a shard
+    */
+   public Row executeCheckedInsertOnAllShards(CheckedInsert insert) throws SQLException {
+      Row first = null;
+      for (DBProject shard : shards()) {
+         Row row = shard.executeCheckedInsert(insert);
+         if (first == null) {
+            first = row;
+         }
+      }
+      return first;
+   }//end executeCheckedInsertOnAllShards
+
+   /**
+    * Records an inserted row in the change journal, if there is one.  The
+    * call returns once the record is on disk.  Callers journal after their
+    * commit, so a failure here is reported but does not undo the row.  The
+    * view refresher is told about the write as well.
+    *
+    * @param table the table the row was inserted into
+    * @param values the inserted column values, in table order
+    */
+   public void journal(String table, String... values) {
+      if (this._views != null) {
+         this._views.written(table);
+      }
+      if (this._journal == null) {
+         return;
+      }
+      try {
+         this._journal.append(ChangeJournal.INSERT, table, values);
+      } catch (IOException e) {
+         System.err.println("Unable to journal " + table + " change: " + e.getMessage());
+      }
+   }//end journal
+
+   /**
+    * Tells whether a report may read the given materialized view instead of
+    * the base tables: views are on and the view is within its staleness
+    * budget.
+    */
+   public boolean viewIsFresh(String view) {
+      return this._views != null && this._views.isFresh(view);
+   }//end viewIsFresh
+
+   /**
+    * Returns one page of a keyset (seek) listing over every shard.  Rows
+    * are ordered by the key columns and then by shard, since ids such as
+    * rID are only unique within a shard.  Each shard seeks past the
+    * previous page's last key with a row comparison, (a, b) > (x, y), which
+    * enters the index on the key columns at that point.  A deep page then
+    * costs no more than the first, unlike OFFSET.
+    *
+    * @param select SELECT ... FROM ... WHERE ..., selecting the key columns first
+    * @param key the key columns, most significant first
+    * @param after the previous page's last key followed by its shard, null for the first page
+    * @param pageSize rows per page
+    * @return up to pageSize + 1 rows, each followed by its shard number; an
+    *         extra row means there is another page
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<Row> keysetPage(final String select, final String[] key, final String[] after, final int pageSize) throws SQLException {
+      final String keyList = String.join(", ", key);
+      final List<DBProject> shards = shards();
+      List<List<Row>> parts = onEveryShard(shard -> {
+         int number = shards.indexOf(shard);
+         String query = select;
+         if (after != null) {
+            // the last row came from shard after[key.length]: rows with the same key on later shards are still to come
+            String[] last = Arrays.copyOf(after, key.length);
+            query += " AND (" + keyList + ") " + (number > Integer.parseInt(after[key.length]) ? ">=" : ">") +
+                     " ('" + String.join("', '", last) + "')";
+         }
+         List<Row> rows = shard.executeQueryAndReturnRows(query + " ORDER BY " + keyList + " LIMIT " + (pageSize + 1));
+         List<Row> numbered = new ArrayList<Row>();
+         for (Row row : rows) {
+            Object[] values = Arrays.copyOf(row.values, row.values.length + 1);
+            values[row.values.length] = number;
+            numbered.add(new Row(values));
+         }
+         return numbered;
+      });
+
+      List<Row> merged = new ArrayList<Row>();
+      for (List<Row> part : parts) {
+         merged.addAll(part);
+      }
+      Collections.sort(merged, (a, b) -> {
+         for (int i = 0; i < key.length; i++) {
+            @SuppressWarnings("unchecked")
+            int c = ((Comparable<Object>) a.values[i]).compareTo(b.values[i]);
+            if (c != 0) {
+               return c;
+            }
+         }
+         return Integer.compare((Integer) a.values[a.values.length - 1], (Integer) b.values[b.values.length - 1]);
+      });
+      return merged.size() > pageSize + 1 ? new ArrayList<Row>(merged.subList(0, pageSize + 1)) : merged;
+   }//end keysetPage
+
+   /**
+    * Merges the per-shard results of a top K query: keeps the K rows with the
+    * highest numeric value in the given column.
+    */
+   public static List<List<String>> mergeTopK(List<List<List<String>>> parts, int column, int k) {
+      List<List<String>> merged = new ArrayList<List<String>>();
+      for (List<List<String>> part : parts) {
+         merged.addAll(part);
+      }
+      Collections.sort(merged, (a, b) -> new BigDecimal(b.get(column).trim()).compareTo(new BigDecimal(a.get(column).trim())));
+      return merged.size() > k ? new ArrayList<List<String>>(merged.subList(0, k)) : merged;
+   }//end mergeTopK
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -74,14 +556,23 @@ public class DBProject {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
+      if (Lane.isRouted()) {
+         onLane(() -> {
+            executeUpdate(sql);
+            return null;
+         });
+         return;
+      }
+      long start = System.nanoTime();
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = connection().createStatement ();
 
       // issues the update instruction
       stmt.executeUpdate (sql);
 
       // close the instruction
       stmt.close ();
+      checkSlow(sql, start);
    }//end executeUpdate
 
    /**
@@ -94,8 +585,12 @@ public class DBProject {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+      if (Lane.isRouted()) {
+         return onLane(() -> executeQuery(query));
+      }
+      long start = System.nanoTime();
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = connection().createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -106,29 +601,46 @@ public class DBProject {
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
 
-      // Collect rows first so we can calculate column widths for aligned output.
-      int[] colWidths = new int[numCol];
       String[] headers = new String[numCol];
       for (int i = 1; i <= numCol; i++) {
          headers[i - 1] = rsmd.getColumnLabel(i);
-         colWidths[i - 1] = headers[i - 1].length();
       }
 
       List<List<String>> rows = new ArrayList<>();
       while (rs.next()){
          List<String> row = new ArrayList<>();
          for (int i = 1; i <= numCol; ++i) {
-            String value = rs.getString(i);
-            if (value == null) {
-               value = "";
-            }
-            row.add(value);
-            colWidths[i - 1] = Math.max(colWidths[i - 1], value.length());
+            row.add(rs.getString(i));
          }
          rows.add(row);
       }//end while
+      checkSlow(query, start);
+
+      printTable(headers, rows);
+      stmt.close ();
+      return rows.size();
+   }//end executeQuery
+
+   /**
+    * Prints rows under their column headers, each column padded to its
+    * widest value.
+    */
+   public static void printTable(String[] headers, List<List<String>> rows) {
+      int numCol = headers.length;
+      // Collect column widths first for aligned output.
+      int[] colWidths = new int[numCol];
+      for (int i = 0; i < numCol; i++) {
+         colWidths[i] = headers[i].length();
+      }
+      for (List<String> row : rows) {
+         for (int i = 0; i < numCol; i++) {
+            if (row.get(i) == null) {
+               row.set(i, "");
+            }
+            colWidths[i] = Math.max(colWidths[i], row.get(i).length());
+         }
+      }
 
       // Print header
       for (int i = 0; i < numCol; i++) {
@@ -148,18 +660,50 @@ public class DBProject {
             }
          }
          System.out.println();
-         ++rowCount;
       }
+   }//end printTable
 
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   /**
+    * Runs a CheckedInsert: one statement that checks the rows the new row
+    * refers to and inserts it only when they all exist.  A failed check
+    * comes back as a MissingReferenceException carrying the check's
+    * message, as does a foreign key violation from a row deleted between
+    * the check and the insert.
+    *
+    * @return the inserted row, in CheckedInsert column order
+    * @throws java.sql.SQLException when a check or the insert failed
+    */
+   public Row executeCheckedInsert(CheckedInsert insert) throws SQLException {
+      try {
+         return insert.inserted(executeQueryAndReturnRows(insert.sql()));
+      } catch (SQLException e) {
+         throw MissingReferenceException.translate(e);
+      }
+   }//end executeCheckedInsert
+
+   /**
+    * SQL condition that holds when the hotel exists.
+    */
+   static String hotelExists(String hotelID) {
+      return "EXISTS(SELECT 1 FROM Hotel WHERE hotelID = " + hotelID + ")";
+   }//end hotelExists
+
+   /**
+    * SQL condition that holds when the room exists.
+    */
+   static String roomExists(String hotelID, String roomNo) {
+      return "EXISTS(SELECT 1 FROM Room WHERE hotelID = " + hotelID + " AND roomNo = " + roomNo + ")";
+   }//end roomExists
 
    /**
     * Executes a query and returns the result as a list of rows.
     */
    public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-      Statement stmt = this._connection.createStatement();
+      if (Lane.isRouted()) {
+         return onLane(() -> executeQueryAndReturnResult(query));
+      }
+      long start = System.nanoTime();
+      Statement stmt = connection().createStatement();
       ResultSet rs = stmt.executeQuery(query);
       ResultSetMetaData rsmd = rs.getMetaData();
       int numCol = rsmd.getColumnCount();
@@ -173,103 +717,436 @@ public class DBProject {
          result.add(row);
       }
       stmt.close();
+      checkSlow(query, start);
       return result;
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Executes a query and returns the result as typed rows.  Each column is
+    * read with the JDBC getter of its SQL type (getInt, getLong, getDate,
+    * getBigDecimal) instead of as text, so callers get numbers and dates
+    * without parsing strings.
     */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
-   }//end cleanup
+   public List<Row> executeQueryAndReturnRows(String query) throws SQLException {
+      if (Lane.isRouted()) {
+         return onLane(() -> executeQueryAndReturnRows(query));
+      }
+      long start = System.nanoTime();
+      Statement stmt = connection().createStatement();
+      List<Row> result = readRows(stmt.executeQuery(query));
+      stmt.close();
+      checkSlow(query, start);
+      return result;
+   }//end executeQueryAndReturnRows
 
    /**
-    * The main execution method
+    * Reads the rest of a result set as typed rows.
+    */
+   static List<Row> readRows(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      int[] types = new int[numCol];
+      for (int i = 0; i < numCol; i++) {
+         types[i] = rsmd.getColumnType(i + 1);
+      }
+
+      List<Row> result = new ArrayList<Row>();
+      while (rs.next()) {
+         Object[] values = new Object[numCol];
+         for (int i = 0; i < numCol; i++) {
+            switch (types[i]) {
+               case Types.SMALLINT:
+               case Types.INTEGER:
+                  values[i] = rs.getInt(i + 1);
+                  break;
+               case Types.BIGINT:
+                  values[i] = rs.getLong(i + 1);
+                  break;
+               case Types.NUMERIC:
+               case Types.DECIMAL:
+                  values[i] = rs.getBigDecimal(i + 1);
+                  break;
+               case Types.DATE:
+                  java.sql.Date date = rs.getDate(i + 1);
+                  values[i] = date == null ? null : date.toLocalDate();
+                  break;
+               default:
+                  values[i] = rs.getString(i + 1);
+                  break;
+            }
+            if (rs.wasNull()) {
+               values[i] = null;
+            }
+         }
+         result.add(new Row(values));
+      }
+      rs.close();
+      return result;
+   }//end readRows
+
+   /**
+    * An INSERT ... SELECT ... RETURNING that validates its references in
+    * the same statement:
     *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    *   WITH checks AS (SELECT (EXISTS(...))::int AS c0, ...),
+    *        inserted AS (INSERT INTO table(columns) SELECT values FROM checks
+    *                     WHERE c0 = 1 AND ... RETURNING columns)
+    *   SELECT * FROM checks LEFT JOIN inserted ON true
+    *
+    * so the caller gets one row back either way: the check flags followed
+    * by the new row, or by NULLs when a check failed.
     */
-   public static void main (String[] args) {
-      if (args.length != 3) {
-         System.err.println (
-            "Usage: " +
-            "java [-classpath <classpath>] " +
-            DBProject.class.getName () +
-            " <dbname> <port> <user>");
-         return;
-      }//end if
-      
-      Greeting();
-      DBProject esql = null;
-      try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the DBProject object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new DBProject (dbname, dbport, user, "");
+   public static class CheckedInsert {
+      private final String table;
+      private final String[] columns;
+      private final List<String> references = new ArrayList<String>();
+      private final List<String> keys = new ArrayList<String>();
+      private final List<String> messages = new ArrayList<String>();
+      private final List<String> conditions = new ArrayList<String>();
+      private String values;
+
+      public CheckedInsert(String table, String... columns) {
+         this.table = table;
+         this.columns = columns;
+      }
 
-         boolean keepon = true;
-         while(keepon) {
-            System.out.print("\t");
-            // These are sample SQL statements
-				System.out.println("MAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. Add new customer");
-				System.out.println("2. Add new room");
-				System.out.println("3. Add new maintenance company");
-				System.out.println("4. Add new repair");
-				System.out.println("5. Add new Booking"); 
-				System.out.println("6. Assign house cleaning staff to a room");
-				System.out.println("7. Raise a repair request");
-				System.out.println("8. Get number of available rooms");
-				System.out.println("9. Get number of booked rooms");
-				System.out.println("10. Get hotel bookings for a week");
-				System.out.println("11. Get top k rooms with highest price for a date range");
-				System.out.println("12. Get top k highest booking price for a customer");
-				System.out.println("13. Get customer total cost occurred for a give date range"); 
-				System.out.println("14. List the repairs made by maintenance company");
-				System.out.println("15. Get top k maintenance companies based on repair count");
-				System.out.println("16. Get number of repairs occurred per year for a given hotel room");
-				System.out.println("17. < EXIT");
+      /**
+       * Adds a check: the row is only inserted when the condition holds.
+       *
+       * @param reference the table of the row the check looks for, e.g. Room
+       * @param key that row's key, e.g. "12, 5" for hotel 12, room 5
+       * @param message the error to report when it does not
+       * @param condition an SQL boolean expression, e.g. EXISTS(SELECT ...)
+       */
+      public CheckedInsert require(String reference, String key, String message, String condition) {
+         references.add(reference);
+         keys.add(key);
+         messages.add(message);
+         conditions.add(condition);
+         return this;
+      }
 
-            switch (readChoice()){
-				   case 1: addCustomer(esql); break;
-				   case 2: addRoom(esql); break;
-				   case 3: addMaintenanceCompany(esql); break;
-				   case 4: addRepair(esql); break;
-				   case 5: bookRoom(esql); break;
-				   case 6: assignHouseCleaningToRoom(esql); break;
-				   case 7: repairRequest(esql); break;
-				   case 8: numberOfAvailableRooms(esql); break;
-				   case 9: numberOfBookedRooms(esql); break;
-				   case 10: listHotelRoomBookingsForAWeek(esql); break;
-				   case 11: topKHighestRoomPriceForADateRange(esql); break;
-				   case 12: topKHighestPriceBookingsForACustomer(esql); break;
-				   case 13: totalCostForCustomer(esql); break;
-				   case 14: listRepairsMade(esql); break;
-				   case 15: topKMaintenanceCompany(esql); break;
-				   case 16: numberOfRepairsForEachRoomPerYear(esql); break;
-				   case 17: keepon = false; break;
-				   default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-         }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
+      /**
+       * Sets the select list giving the column values, in column order.
+       */
+      public CheckedInsert values(String values) {
+         this.values = values;
+         return this;
+      }
+
+      public String[] columns() {
+         return columns;
+      }
+
+      /**
+       * Checks the flags of the row the statement returned and returns the
+       * inserted row without them.
+       *
+       * @throws MissingReferenceException for the first failed check
+       */
+      Row inserted(List<Row> result) throws MissingReferenceException {
+         Row row = result.get(0);
+         for (int i = 0; i < messages.size(); i++) {
+            if (row.getInt(i) == 0) {
+               throw new MissingReferenceException(references.get(i), keys.get(i), messages.get(i));
+            }
+         }
+         return new Row(Arrays.copyOfRange(row.values, messages.size(), row.values.length));
+      }
+
+      String sql() {
+         String columnList = String.join(", ", columns);
+         // ok keeps the select list of checks non-empty when there are no conditions
+         StringBuilder checks = new StringBuilder("SELECT 1 AS ok");
+         StringBuilder where = new StringBuilder("true");
+         StringBuilder flags = new StringBuilder();
+         for (int i = 0; i < conditions.size(); i++) {
+            checks.append(", (").append(conditions.get(i)).append(")::int AS c").append(i);
+            where.append(" AND c").append(i).append(" = 1");
+            flags.append("checks.c").append(i).append(", ");
+         }
+         return "WITH checks AS (" + checks + "), " +
+                "inserted AS (INSERT INTO " + table + "(" + columnList + ") SELECT " + values +
+                " FROM checks WHERE " + where + " RETURNING " + columnList + ") " +
+                "SELECT " + flags + "inserted.* FROM checks LEFT JOIN inserted ON true";
+      }
+   }//end CheckedInsert
+
+   /**
+    * A write refused because a row it refers to (hotel, room, company, ...)
+    * does not exist, or does not qualify, such as staff of the wrong role.
+    * reference and key say which row, so callers need not parse the message.
+    */
+   public static class MissingReferenceException extends SQLException {
+      private static final long serialVersionUID = 1L;
+      // "not present in table" part of a foreign key violation's detail
+      private static final Pattern FOREIGN_KEY_DETAIL = Pattern.compile("Key \\((.*)\\)=\\((.*)\\) is not present in table \"(\\w+)\"");
+
+      /** table of the row that is missing or does not qualify, e.g. Room, null when unknown */
+      public final String reference;
+      /** key of that row, e.g. "12, 5", null when unknown */
+      public final String key;
+
+      public MissingReferenceException(String reference, String key, String message) {
+         super(message, "23503");
+         this.reference = reference;
+         this.key = key;
+      }
+
+      /**
+       * Turns a foreign key violation into a MissingReferenceException and
+       * returns any other exception as it is.  The table and key are taken
+       * from the violation's detail when the server sends it.
+       */
+      static SQLException translate(SQLException e) {
+         if (e instanceof MissingReferenceException) {
+            return e;
+         }
+         if ("23503".equals(e.getSQLState()) || String.valueOf(e.getMessage()).contains("foreign key")) {
+            Matcher detail = FOREIGN_KEY_DETAIL.matcher(String.valueOf(e.getMessage()));
+            return detail.find() ? new MissingReferenceException(detail.group(3), detail.group(2), e.getMessage())
+                                 : new MissingReferenceException(null, null, e.getMessage());
+         }
+         return e;
+      }
+   }//end MissingReferenceException
+
+   /**
+    * One row returned by executeQueryAndReturnRows.  Columns are numbered
+    * from 0, like the rows of executeQueryAndReturnResult.  Numeric getters
+    * work on Numeric as well as INTEGER/BIGINT columns, so the same code
+    * runs against create.sql and create_native.sql.
+    */
+   public static class Row {
+      private final Object[] values;
+
+      Row(Object[] values) {
+         this.values = values;
+      }
+
+      public boolean isNull(int i) {
+         return values[i] == null;
+      }
+
+      public int getInt(int i) {
+         return ((Number) values[i]).intValue();
+      }
+
+      public long getLong(int i) {
+         return ((Number) values[i]).longValue();
+      }
+
+      public BigDecimal getBigDecimal(int i) {
+         Object value = values[i];
+         if (value == null || value instanceof BigDecimal) {
+            return (BigDecimal) value;
+         }
+         return BigDecimal.valueOf(((Number) value).longValue());
+      }
+
+      /**
+       * Returns the value in hundredths, for prices.
+       */
+      public long getCents(int i) {
+         return getBigDecimal(i).movePointRight(2).longValueExact();
+      }
+
+      public LocalDate getDate(int i) {
+         return (LocalDate) values[i];
+      }
+
+      public String getString(int i) {
+         return values[i] == null ? null : values[i].toString();
+      }
+
+      /**
+       * Prints the row under the given column headers, like executeQuery.
+       */
+      public void print(String[] headers) {
+         List<String> row = new ArrayList<String>();
+         for (int i = 0; i < values.length; i++) {
+            row.add(getString(i));
+         }
+         printTable(headers, new ArrayList<List<String>>(Collections.singletonList(row)));
+      }
+   }//end Row
+
+   /**
+    * Hands a statement that took longer than the slow operation threshold
+    * to the slow operation log.
+    *
+    * @param sql the statement that was run
+    * @param start System.nanoTime() before it was issued
+    */
+   private void checkSlow(String sql, long start) {
+      long nanos = System.nanoTime() - start;
+      if (_slowLog != null && nanos >= _slowLog.thresholdNanos) {
+         _slowLog.record(this, SlowOperationLog.currentOperation(), sql, nanos);
+      }
+   }//end checkSlow
+
+   /**
+    * Returns the side connection used to EXPLAIN slow statements, opening it
+    * on first use.
+    */
+   synchronized Connection explainConnection() throws SQLException {
+      if (this._explainConnection == null) {
+         this._explainConnection = openConnection();
+      }
+      return this._explainConnection;
+   }//end explainConnection
+
+   /**
+    * Method to close the physical connection if it is open.
+    */
+   public void cleanup(){
+      try{
+         if (this._connection != null){
+            this._connection.close ();
+         }//end if
+         if (this._explainConnection != null){
+            this._explainConnection.close ();
+         }//end if
+         for (DBProject shard : this._shards) {
+            shard.cleanup();
+         }
+         if (this._scatterPool != null) {
+            this._scatterPool.shutdown();
+         }
+         if (this._journal != null) {
+            this._journal.close();
+         }
+         if (this._views != null) {
+            this._views.stop();
+         }
+         if (this._transactionLane != null) {
+            this._transactionLane.shutdown();
+            this._reportLane.shutdown();
+         }
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end cleanup
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DBProject.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      
+      Greeting();
+      DBProject esql = null;
+      try{
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         // instantiate the DBProject object and creates a physical
+         // connection.
+         String dbname = args[0];
+         String dbport = args[1];
+         String user = args[2];
+         esql = new DBProject (dbname, dbport, user, "");
+
+         boolean keepon = true;
+         while(keepon) {
+            System.out.print("\t");
+            // These are sample SQL statements
+				System.out.println("MAIN MENU");
+				System.out.println("---------");
+				System.out.println("1. Add new customer");
+				System.out.println("2. Add new room");
+				System.out.println("3. Add new maintenance company");
+				System.out.println("4. Add new repair");
+				System.out.println("5. Add new Booking"); 
+				System.out.println("6. Assign house cleaning staff to a room");
+				System.out.println("7. Raise a repair request");
+				System.out.println("8. Get number of available rooms");
+				System.out.println("9. Get number of booked rooms");
+				System.out.println("10. Get hotel bookings for a week");
+				System.out.println("11. Get top k rooms with highest price for a date range");
+				System.out.println("12. Get top k highest booking price for a customer");
+				System.out.println("13. Get customer total cost occurred for a give date range"); 
+				System.out.println("14. List the repairs made by maintenance company");
+				System.out.println("15. Get top k maintenance companies based on repair count");
+				System.out.println("16. Get number of repairs occurred per year for a given hotel room");
+				System.out.println("17. Get booking totals from the columnar store (timed against SQL)");
+				System.out.println("18. Get occupancy and revenue of every hotel for a date range");
+				System.out.println("19. Get booking revenue by hotel, month and room type");
+				System.out.println("20. List changes from the change journal");
+				System.out.println("21. Run concurrent booking benchmark");
+				System.out.println("22. Assign house cleaning staff to all rooms booked on a day");
+				System.out.println("23. Export all tables to columnar files");
+				System.out.println("24. Get approximate booking price percentiles");
+				System.out.println("25. Get approximate number of distinct customers");
+				System.out.println("26. Get approximate top k rooms and maintenance companies");
+				System.out.println("27. Get customer lifetime spend");
+				System.out.println("28. Show materialized view status");
+				System.out.println("29. Time bookings while reports saturate the report lane");
+				System.out.println("30. List the repairs made by maintenance company, page by page");
+				System.out.println("31. Get hotel bookings for a week, page by page");
+				System.out.println("32. Get booking history of a customer, page by page");
+				System.out.println("33. < EXIT");
+
+            // short writes and lookups run on the transaction lane, heavy reports on the report lane;
+            // the benchmarks manage their own threads and run directly
+            final DBProject db = esql;
+            switch (readChoice()){
+				   case 1: esql.dispatch(esql._transactionLane, () -> addCustomer(db)); break;
+				   case 2: esql.dispatch(esql._transactionLane, () -> addRoom(db)); break;
+				   case 3: esql.dispatch(esql._transactionLane, () -> addMaintenanceCompany(db)); break;
+				   case 4: esql.dispatch(esql._transactionLane, () -> addRepair(db)); break;
+				   case 5: esql.dispatch(esql._transactionLane, () -> bookRoom(db)); break;
+				   case 6: esql.dispatch(esql._transactionLane, () -> assignHouseCleaningToRoom(db)); break;
+				   case 7: esql.dispatch(esql._transactionLane, () -> repairRequest(db)); break;
+				   case 8: esql.dispatch(esql._transactionLane, () -> numberOfAvailableRooms(db)); break;
+				   case 9: esql.dispatch(esql._transactionLane, () -> numberOfBookedRooms(db)); break;
+				   case 10: esql.dispatch(esql._transactionLane, () -> listHotelRoomBookingsForAWeek(db)); break;
+				   case 11: esql.dispatch(esql._reportLane, () -> topKHighestRoomPriceForADateRange(db)); break;
+				   case 12: esql.dispatch(esql._transactionLane, () -> topKHighestPriceBookingsForACustomer(db)); break;
+				   case 13: esql.dispatch(esql._transactionLane, () -> totalCostForCustomer(db)); break;
+				   case 14: esql.dispatch(esql._reportLane, () -> listRepairsMade(db)); break;
+				   case 15: esql.dispatch(esql._reportLane, () -> topKMaintenanceCompany(db)); break;
+				   case 16: esql.dispatch(esql._reportLane, () -> numberOfRepairsForEachRoomPerYear(db)); break;
+				   case 17: esql.dispatch(esql._reportLane, () -> analyticBookingTotals(db)); break;
+				   case 18: esql.dispatch(esql._reportLane, () -> occupancyReport(db)); break;
+				   case 19: esql.dispatch(esql._reportLane, () -> bookingCubeReport(db)); break;
+				   case 20: esql.dispatch(esql._transactionLane, () -> listJournalChanges(db)); break;
+				   case 21: bookingConcurrencyBenchmark(esql); break;
+				   case 22: esql.dispatch(esql._reportLane, () -> assignHouseCleaningForDay(db)); break;
+				   case 23: esql.dispatch(esql._reportLane, () -> exportTables(db)); break;
+				   case 24: esql.dispatch(esql._reportLane, () -> approximatePricePercentiles(db)); break;
+				   case 25: esql.dispatch(esql._reportLane, () -> approximateDistinctCustomers(db)); break;
+				   case 26: esql.dispatch(esql._reportLane, () -> approximateTopRoomsAndCompanies(db)); break;
+				   case 27: esql.dispatch(esql._reportLane, () -> customerLifetimeSpend(db)); break;
+				   case 28: esql.dispatch(esql._transactionLane, () -> viewStatus(db)); break;
+				   case 29: laneIsolationDemo(esql); break;
+				   case 30: esql.dispatch(esql._transactionLane, () -> listRepairsMadePaged(db)); break;
+				   case 31: esql.dispatch(esql._transactionLane, () -> listHotelRoomBookingsForAWeekPaged(db)); break;
+				   case 32: esql.dispatch(esql._transactionLane, () -> customerBookingHistoryPaged(db)); break;
+				   case 33: keepon = false; break;
+				   default : System.out.println("Unrecognized choice!"); break;
+            }//end switch
+         }//end while
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(_slowLog != null) {
+               _slowLog.close();
+            }//end if
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
             }//end if
          }catch (Exception e) {
             // ignored.
@@ -355,14 +1232,12 @@ public class DBProject {
             gender = "Other";
          }
 
-         String query = "INSERT INTO Customer(customerID, fName, lName, address, phno, DOB, gender)"+
-                        "VALUES ('" + id + "', '"+fName +"', '" + lName + "', '" + address + "', '" + phno + "', '" + DOB + "', '" + gender + "')";
-         
-         esql.executeUpdate(query);
+         CheckedInsert insert = new CheckedInsert("Customer", "customerID", "fName", "lName", "address", "phno", "DOB", "gender")
+            .values("'" + id + "', '"+fName +"', '" + lName + "', '" + address + "', '" + phno + "', '" + DOB + "', '" + gender + "'");
+         Row added = esql.executeCheckedInsertOnAllShards(insert);
+         esql.journal("Customer", id, fName, lName, address, phno, DOB, gender);
          System.out.println("Added customer");
-
-         String displayQuery = "SELECT customerID, fName, lName, address, phno, DOB, gender FROM Customer WHERE customerID = '"+id+"';";
-         esql.executeQuery(displayQuery);
+         added.print(insert.columns());
       } catch (Exception e){
          System.err.println(e.getMessage());
       }
@@ -382,13 +1257,7 @@ public class DBProject {
             System.out.print("Enter hotel id (only number): ");
             hotelID = in.readLine().trim();
          }
-
-         String searchID = "SELECT COUNT(*) FROM Hotel WHERE hotelID='" + hotelID + "'";
-         List<List<String>> hotelIDSet = esql.executeQueryAndReturnResult(searchID);
-         if(hotelIDSet.size() == 0){//
-            System.out.print("Hotel id: " + hotelID + " not found");
-            return;
-         }
+         DBProject db = esql.forHotel(hotelID);
 
          System.out.print("Enter room number: ");
          String roomNo = in.readLine().trim();
@@ -401,11 +1270,13 @@ public class DBProject {
          System.out.print("Enter room type: ");
          String type = in.readLine().trim();
 
-         String query = "INSERT INTO Room(hotelID, roomNo, roomType)"+
-                        "VALUES ('" + hotelID + "', '" + roomNo + "', '" + type + "')";
-         esql.executeUpdate(query);
+         CheckedInsert insert = new CheckedInsert("Room", "hotelID", "roomNo", "roomType")
+            .require("Hotel", hotelID, "Hotel id: " + hotelID + " not found", hotelExists(hotelID))
+            .values("'" + hotelID + "', '" + roomNo + "', '" + type + "'");
+         Row added = db.executeCheckedInsert(insert);
+         esql.journal("Room", hotelID, roomNo, type);
          System.out.println("Added room");
-         esql.executeQuery("SELECT hotelID, roomNo, roomType FROM Room WHERE hotelID='" + hotelID+"' AND roomNo='" + roomNo + "' AND roomType='"+type+"'");
+         added.print(insert.columns());
       } catch (Exception e){
          System.err.println (e.getMessage());
       }
@@ -441,12 +1312,12 @@ public class DBProject {
          }
          String isCertified = certInput.equals("y")? "true" : "false";
 
-         String query = "INSERT INTO MaintenanceCompany(cmpID, name, address, isCertified)" + 
-                        "VALUES ('" + companyID + "', '" + comName + "', '" + address + "', '" + isCertified + "')";
-
-         esql.executeUpdate(query);
+         CheckedInsert insert = new CheckedInsert("MaintenanceCompany", "cmpID", "name", "address", "isCertified")
+            .values("'" + companyID + "', '" + comName + "', '" + address + "', '" + isCertified + "'");
+         Row added = esql.executeCheckedInsertOnAllShards(insert);
+         esql.journal("MaintenanceCompany", companyID, comName, address, isCertified);
          System.out.println("Added maintenance company");
-         esql.executeQuery("SELECT cmpID, name, address, isCertified FROM MaintenanceCompany WHERE cmpID='" + companyID+"'");
+         added.print(insert.columns());
       } catch (Exception e){
          System.err.println(e.getMessage());
       }
@@ -465,22 +1336,14 @@ public class DBProject {
             System.out.print("Enter hotel id (only number): ");
             hotelID = in.readLine().trim();
          }
-
-         String searchID = "SELECT COUNT(*) FROM Hotel WHERE hotelID='" + hotelID + "'";
-         List<List<String>> hotelIDSet = esql.executeQueryAndReturnResult(searchID);
-         if(hotelIDSet.size() == 0){//
-            System.out.print("Hotel id: " + hotelID + " not found");
-            return;
-         }
+         DBProject db = esql.forHotel(hotelID);
 
          System.out.print("Enter room number: ");
          String roomNo = in.readLine().trim();
 
-         String searchRoomID = "SELECT COUNT(*) FROM Room WHERE hotelID='" + hotelID + "' AND roomNo='" + roomNo + "'";
-         List<List<String>> RoomIDSet = esql.executeQueryAndReturnResult(searchRoomID);
-         if(RoomIDSet.size() == 0){//
-            System.out.print("Room id: " + roomNo + " not found");
-            return;
+         while(!roomNo.matches("\\d+")){ // the id should only contain number
+            System.out.print("Enter room number (only number): ");
+            roomNo = in.readLine().trim();
          }
 
          System.out.print("Enter maintenance company ID: ");
@@ -491,13 +1354,6 @@ public class DBProject {
             mCompany = in.readLine().trim();
          }
 
-         String searchMID = "SELECT COUNT(*) FROM MaintenanceCompany WHERE cmpID='"+mCompany + "'";
-         List<List<String>> CompanySet = esql.executeQueryAndReturnResult(searchMID);
-         if(CompanySet.size() == 0){//
-            System.out.print("Company id: " + mCompany + " not found");
-            return;
-         }
-
          System.out.print("Enter repair date (YYYY-MM-DD): ");
          String date = in.readLine().trim();
 
@@ -512,22 +1368,22 @@ public class DBProject {
             description = "";
          }
 
-         int rID = 1;
-         String getRID = "SELECT MAX(rID) FROM Repair";
-         List<List<String>> rIDResult = esql.executeQueryAndReturnResult(getRID);
-         if(rIDResult.size() > 0 && rIDResult.get(0).get(0) != null){
-            rID = Integer.parseInt(rIDResult.get(0).get(0)) +1;
-         }
-
          System.out.print("Enter repair type: ");
          String type = in.readLine().trim();
 
-         String query = "INSERT INTO Repair(rID, hotelID, roomNo, mCompany, repairDate, description, repairType)" + 
-                        "VALUES ('" + String.valueOf(rID) + "', '" + hotelID + "', '" + roomNo + "', '"+mCompany + "', '" + date + "', '" + description + "', '"+type + "')";
-
-         esql.executeUpdate(query);
+         CheckedInsert insert = new CheckedInsert("Repair", "rID", "hotelID", "roomNo", "mCompany", "repairDate", "description", "repairType")
+            .require("Hotel", hotelID, "Hotel id: " + hotelID + " not found", hotelExists(hotelID))
+            .require("Room", hotelID + ", " + roomNo, "Room id: " + roomNo + " not found", roomExists(hotelID, roomNo))
+            .require("MaintenanceCompany", mCompany, "Company id: " + mCompany + " not found", "EXISTS(SELECT 1 FROM MaintenanceCompany WHERE cmpID = " + mCompany + ")")
+            .values("(SELECT COALESCE(MAX(rID), 0) + 1 FROM Repair), '" + hotelID + "', '" + roomNo + "', '"+mCompany + "', '" + date + "', '" + description + "', '"+type + "'");
+         Row added = db.executeCheckedInsert(insert);
+         long rID = added.getLong(0);
+         esql.journal("Repair", String.valueOf(rID), hotelID, roomNo, mCompany, date, description, type);
+         if (esql._sketches != null) {
+            esql._sketches.addRepair(Long.parseLong(mCompany));
+         }
          System.out.println("Added repair");
-         esql.executeQuery("SELECT rID, hotelID, roomNo, mCompany, repairDate, description, repairType FROM Repair WHERE rID='" + rID + "'");
+         added.print(insert.columns());
       } catch (Exception e){
          System.err.println(e.getMessage());
       }
@@ -546,22 +1402,14 @@ public class DBProject {
             System.out.print("Enter hotel id (only number): ");
             hotelID = in.readLine().trim();
          }
-
-         String searchID = "SELECT COUNT(*) FROM Hotel WHERE hotelID='" + hotelID + "'";
-         List<List<String>> hotelIDSet = esql.executeQueryAndReturnResult(searchID);
-         if(hotelIDSet.size() == 0){//
-            System.out.print("Hotel id: " + hotelID + " not found");
-            return;
-         }
+         DBProject db = esql.forHotel(hotelID);
 
          System.out.print("Enter room number: ");
          String roomNo = in.readLine().trim();
 
-         String searchRoomID = "SELECT COUNT(*) FROM Room WHERE hotelID='" + hotelID + "' AND roomNo='" + roomNo + "'";
-         List<List<String>> RoomIDSet = esql.executeQueryAndReturnResult(searchRoomID);
-         if(RoomIDSet.size() == 0){//
-            System.out.print("Room id: " + roomNo + " not found");
-            return;
+         while(!roomNo.matches("\\d+")){ // the id should only contain number
+            System.out.print("Enter room number (only number): ");
+            roomNo = in.readLine().trim();
          }
 
          System.out.print("Enter customer first name: ");
@@ -571,13 +1419,13 @@ public class DBProject {
          String lName = in.readLine().trim();
 
          String customerQuery = "SELECT customerID FROM Customer WHERE fName = '" + fName+"' AND lName = '"+lName +"'";
-         List<List<String>> IDresult =esql.executeQueryAndReturnResult(customerQuery);
+         List<Row> IDresult =db.executeQueryAndReturnRows(customerQuery);
          if(IDresult.isEmpty()){
             System.out.print("Customer not found. Adding new customer");
             addCustomer(esql);
-            IDresult =esql.executeQueryAndReturnResult(customerQuery);
+            IDresult =db.executeQueryAndReturnRows(customerQuery);
          }
-         String customerID = IDresult.get(0).get(0);
+         long customerID = IDresult.get(0).getLong(0);
 
          System.out.print("Enter booking date(YYYY-MM-DD): ");
          String bookingDate = in.readLine().trim();
@@ -587,6 +1435,24 @@ public class DBProject {
             bookingDate = in.readLine().trim();
          }
 
+         System.out.print("Enter number of nights: ");
+         String nights = in.readLine().trim();
+
+         while(!nights.matches("[1-9]\\d*")){ // at least one night
+            System.out.print("Enter number of nights (1 or more): ");
+            nights = in.readLine().trim();
+         }
+         long checkIn = LocalDate.parse(bookingDate).toEpochDay();
+         long checkOut = checkIn + Integer.parseInt(nights);
+
+         // turn down a clash with a stay already known before asking for the rest, the database checks the rest
+         long[] clash = stays(esql).firstOverlap(esql, Long.parseLong(hotelID), Long.parseLong(roomNo), checkIn, checkOut);
+         if (clash != null) {
+            System.out.println("Room " + roomNo + " of hotel " + hotelID + " is already booked from " + LocalDate.ofEpochDay(clash[0]) +
+                               " to " + LocalDate.ofEpochDay(clash[1]) + " (booking " + clash[2] + ")");
+            return;
+         }
+
          System.out.print("Enter number of people: ");
          String noOfPeople = in.readLine().trim();
 
@@ -603,23 +1469,216 @@ public class DBProject {
             price = in.readLine().trim();
          }
 
-         String IDQuery = "SELECT MAX(bID) FROM Booking";
-         List<List<String>> result = esql.executeQueryAndReturnResult(IDQuery);
-         int newID = 1;
-         if (result.size() >0 && result.get(0).get(0) != null){
-            newID = Integer.parseInt(result.get(0).get(0)) + 1;
+         // final copies of the values the prompts may have read again
+         final String hotel = hotelID;
+         final String room = roomNo;
+         final String checkInDate = bookingDate;
+         final int stayNights = Integer.parseInt(nights);
+         final String people = noOfPeople;
+         final String amount = price;
+         Row added = db.onLane(() -> insertBooking(db.connection(), String.valueOf(customerID), hotel, room, checkInDate, stayNights, people, amount, true));
+         if (added == null) {
+            // booked by another client since the hotel's stays were loaded
+            stays(esql).forget(Long.parseLong(hotelID));
+            System.out.println("Room " + roomNo + " of hotel " + hotelID + " is already booked between " + bookingDate +
+                               " and " + LocalDate.ofEpochDay(checkOut));
+            return;
+         }
+         long newID = added.getLong(0);
+         esql.journal("Booking", String.valueOf(newID), String.valueOf(customerID), hotelID, roomNo, bookingDate, noOfPeople, price,
+                      "[" + bookingDate + "," + LocalDate.ofEpochDay(checkOut) + ")");
+         stays(esql).add(Long.parseLong(hotelID), Long.parseLong(roomNo), checkIn, checkOut, newID);
+         if (esql._bookingStore != null) {
+            esql._bookingStore.append(customerID, Long.parseLong(hotelID), Long.parseLong(roomNo), LocalDate.parse(bookingDate),
+                                      new BigDecimal(price).movePointRight(2).longValueExact());
+         }
+         if (esql._bookingCube != null) {
+            List<Row> roomType = db.executeQueryAndReturnRows("SELECT roomType FROM Room WHERE hotelID = " + hotelID + " AND roomNo = " + roomNo);
+            long priceCents = new BigDecimal(price).movePointRight(2).longValueExact();
+            esql._bookingCube.add(Integer.parseInt(hotelID), BookingCube.month(bookingDate), roomType.get(0).getString(0),
+                                  1, priceCents, priceCents, Long.parseLong(noOfPeople));
+         }
+         if (esql._sketches != null) {
+            esql._sketches.addBooking(Integer.parseInt(hotelID), Integer.parseInt(roomNo), customerID,
+                                      BookingCube.month(bookingDate), new BigDecimal(price).movePointRight(2).longValueExact());
          }
-
-         String query = "INSERT INTO Booking(bID, customer, hotelID, roomNo, bookingDate, noOfPeople, price)" + 
-                        "VALUES ('" + newID+ "', '"+customerID + "', '"+hotelID + "', '"+roomNo+"', '"+bookingDate+"', '"+noOfPeople+"', '"+price+"')";
-         esql.executeUpdate(query);
          System.out.println("Added booking");
-         esql.executeQuery("SELECT bID, customer, hotelID, roomNo, bookingDate, noOfPeople, price FROM Booking WHERE bID='"+newID+"'");
+         added.print(BOOKING_COLUMNS);
       } catch (Exception e){
          System.err.println(e.getMessage());
       }
    }//end bookRoom
 
+   // lock namespace for pg_advisory_xact_lock(namespace, hotelID), so other users of advisory locks keyed by hotelID do not collide
+   private static final int BOOKING_LOCK_NAMESPACE = 166;
+   private static final int MAX_BOOKING_RETRIES = 3;
+   private static final String[] BOOKING_COLUMNS = {"bID", "customer", "hotelID", "roomNo", "bookingDate", "noOfPeople", "price", "stay"};
+
+   /**
+    * Books a room in one transaction on the given connection.  Bookings of
+    * the same hotel are serialised with a transaction-level advisory lock on
+    * the hotelID, so bookings of different hotels never wait for each other.
+    * The hotel, room and free stay checks run in the INSERT statement itself.
+    * Lock or key conflicts are retried a bounded number of times.
+    *
+    * @param nights the length of the stay starting at bookingDate
+    * @param commit false to roll the booking back (used by the benchmark)
+    * @return the new Booking row, or null when the stay overlaps another stay of the room
+    * @throws java.sql.SQLException when the booking failed or kept conflicting;
+    *         a MissingReferenceException when the hotel or room does not exist
+    */
+   public static Row insertBooking(Connection connection, String customerID, String hotelID, String roomNo, String bookingDate,
+                                   int nights, String noOfPeople, String price, boolean commit) throws SQLException {
+      String stay = "daterange('" + bookingDate + "', '" + bookingDate + "'::date + " + nights + ")";
+      CheckedInsert insert = new CheckedInsert("Booking", BOOKING_COLUMNS)
+         .require("Hotel", hotelID, "Hotel id: " + hotelID + " not found", hotelExists(hotelID))
+         .require("Room", hotelID + ", " + roomNo, "Room id: " + roomNo + " not found", roomExists(hotelID, roomNo))
+         .require("Booking", null, "Room " + roomNo + " of hotel " + hotelID + " is already booked during the stay",
+                  "NOT EXISTS(SELECT 1 FROM Booking WHERE hotelID = " + hotelID + " AND roomNo = " + roomNo +
+                  " AND stay && " + stay + ")")
+         .values("nextval('booking_bid_seq'), '" + customerID + "', '" + hotelID + "', '" + roomNo + "', '" +
+                 bookingDate + "', '" + noOfPeople + "', '" + price + "', " + stay);
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+         for (int attempt = 1; ; attempt++) {
+            try {
+               Statement stmt = connection.createStatement();
+               try {
+                  stmt.executeQuery("SELECT pg_advisory_xact_lock(" + BOOKING_LOCK_NAMESPACE + ", " + Integer.parseInt(hotelID) + ")").close();
+
+                  List<Row> result = readRows(stmt.executeQuery(insert.sql()));
+                  Row flags = result.get(0);
+                  if (flags.getInt(0) == 1 && flags.getInt(1) == 1 && flags.getInt(2) == 0) {
+                     connection.rollback();
+                     return null;
+                  }
+                  Row added = insert.inserted(result);
+                  if (commit) {
+                     connection.commit();
+                  } else {
+                     connection.rollback();
+                  }
+                  return added;
+               } finally {
+                  stmt.close();
+               }
+            } catch (SQLException e) {
+               connection.rollback();
+               if (!isRetryableConflict(e) || attempt >= MAX_BOOKING_RETRIES) {
+                  throw MissingReferenceException.translate(e);
+               }
+               try {
+                  Thread.sleep(10L * attempt);
+               } catch (InterruptedException ie) {
+                  Thread.currentThread().interrupt();
+                  throw e;
+               }
+            }
+         }
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+   }//end insertBooking
+
+   /**
+    * Tells whether a failed transaction lost a race (unique or exclusion
+    * violation, serialization failure or deadlock) and may succeed when run
+    * again.
+    */
+   static boolean isRetryableConflict(SQLException e) {
+      String state = e.getSQLState();
+      if (state != null) {
+         return state.equals("23505") || state.equals("23P01") || state.equals("40001") || state.equals("40P01");
+      }
+      // old drivers do not report the SQLSTATE
+      String message = String.valueOf(e.getMessage()).toLowerCase();
+      return message.contains("duplicate key") || message.contains("conflicting key value") ||
+             message.contains("could not serialize") || message.contains("deadlock");
+   }//end isRetryableConflict
+
+   /**
+    * Returns {hotelID, roomNo} of one room of each of the first count
+    * hotels, taken from the shards that own them.
+    */
+   static List<List<String>> firstRooms(DBProject esql, int count) throws SQLException {
+      List<List<String>> rooms = new ArrayList<List<String>>();
+      for (List<List<String>> part : esql.scatterGather(
+              "SELECT hotelID, MIN(roomNo) FROM Room WHERE hotelID > 0 GROUP BY hotelID ORDER BY hotelID LIMIT " + count)) {
+         rooms.addAll(part);
+      }
+      rooms.sort((a, b) -> Long.compare(Long.parseLong(a.get(0)), Long.parseLong(b.get(0))));
+      return rooms.size() > count ? new ArrayList<List<String>>(rooms.subList(0, count)) : rooms;
+   }//end firstRooms
+
+   public static void bookingConcurrencyBenchmark(DBProject esql){
+      // Given a number of threads and bookings per thread, measure booking throughput when
+      // the threads book rooms of 1, 2, 4, ... different hotels; all bookings are rolled back
+      try{
+         System.out.print("\tEnter number of threads: ");
+         int threads = Integer.parseInt(in.readLine().trim());
+
+         System.out.print("\tEnter bookings per thread: ");
+         final int perThread = Integer.parseInt(in.readLine().trim());
+
+         List<List<String>> rooms = firstRooms(esql, threads);
+         if (rooms.isEmpty()) {
+            System.out.println("No rooms to book");
+            return;
+         }
+
+         List<Integer> hotelCounts = new ArrayList<Integer>();
+         for (int hotels = 1; hotels < rooms.size(); hotels *= 2) {
+            hotelCounts.add(hotels);
+         }
+         hotelCounts.add(rooms.size());
+
+         long sequenceValues = 0;
+         System.out.printf("%-7s  %-8s  %-10s  %s%n", "Hotels", "Threads", "Bookings", "Bookings/s");
+         for (int hotels : hotelCounts) {
+            List<Connection> connections = new ArrayList<Connection>();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+               List<Future<Integer>> done = new ArrayList<Future<Integer>>();
+               long start = System.nanoTime();
+               for (int t = 0; t < threads; t++) {
+                  final List<String> room = rooms.get(t % hotels);
+                  final Connection connection = esql.forHotel(room.get(0)).openConnection();
+                  connections.add(connection);
+                  final int thread = t;
+                  done.add(pool.submit(() -> {
+                     int booked = 0;
+                     for (int i = 0; i < perThread; i++) {
+                        String day = LocalDate.of(2100, 1, 1).plusDays(thread * (long) perThread + i).toString();
+                        if (insertBooking(connection, "0", room.get(0), room.get(1), day, 1, "1", "100", false) != null) {
+                           ++booked;
+                        }
+                     }
+                     return booked;
+                  }));
+               }
+               int booked = 0;
+               for (Future<Integer> f : done) {
+                  booked += f.get();
+               }
+               double seconds = (System.nanoTime() - start) / 1e9;
+               sequenceValues += booked;
+               System.out.printf("%-7d  %-8d  %-10d  %.1f%n", hotels, threads, booked, booked / seconds);
+            } finally {
+               pool.shutdown();
+               for (Connection connection : connections) {
+                  connection.close();
+               }
+            }
+         }
+         // nextval is not undone by a rollback
+         System.out.println("The bookings were rolled back, but they used up " + sequenceValues +
+                            " booking_bid_seq values on the hotels' shards, so new bIDs skip those numbers");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end bookingConcurrencyBenchmark
+
    public static void assignHouseCleaningToRoom(DBProject esql){
 	  // Given Staff SSN, HotelID, roomNo Assign the staff to the room 
       // Your code goes here.
@@ -633,6 +1692,7 @@ public class DBProject {
             System.out.print("Enter hotel id (only number): ");
             hotelID = in.readLine().trim();
          }
+         DBProject db = esql.forHotel(hotelID);
 
          System.out.print("Enter staff SSN: ");
          String ssn = in.readLine().trim();
@@ -642,30 +1702,175 @@ public class DBProject {
             ssn = in.readLine().trim();
          }
 
-         String staffQuery ="SELECT employerID FROM Staff WHERE SSN ='" + ssn  + "'";
-         List<List<String>> StaffIDSet = esql.executeQueryAndReturnResult(staffQuery);
-         if(StaffIDSet.size() == 0){
-            System.out.print("Staff with ssn: " + ssn + " not found");
-            return;
-         }
-
          System.out.print("Enter room number: ");
          String roomNo = in.readLine().trim();
 
-         String asgIDQuery = "SELECT MAX(asgID) FROM Assigned";
-         List<List<String>> result = esql.executeQueryAndReturnResult(asgIDQuery);
-         int asgID = Integer.parseInt(result.get(0).get(0))+1;
+         while(!roomNo.matches("\\d+")){ // the id should only contain number
+            System.out.print("Enter room number (only number): ");
+            roomNo = in.readLine().trim();
+         }
+
+         System.out.print("Enter assignment date (YYYY-MM-DD): ");
+         String assignDate = in.readLine().trim();
+
+         while (!assignDate.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            System.out.println("Date format YYYY-MM-DD, please enter again: ");
+            assignDate = in.readLine().trim();
+         }
 
-         String query = "INSERT INTO Assigned(asgID, staffID, hotelID, roomNo)" + 
-                        "VALUES ('" + asgID+"', '"+ ssn+"', '"+hotelID + "', '"+roomNo + "')";
-         esql.executeUpdate(query);
+         CheckedInsert insert = new CheckedInsert("Assigned", "asgID", "staffID", "hotelID", "roomNo", "assignDate")
+            .require("Staff", ssn, "Staff with ssn: " + ssn + " not found", "EXISTS(SELECT 1 FROM Staff WHERE SSN = " + ssn + ")")
+            .require("Staff", ssn, "Only house cleaning staff can be assigned to a room.",
+                     "EXISTS(SELECT 1 FROM Staff WHERE SSN = " + ssn + " AND role = 'HouseCleaning')")
+            .require("Staff", ssn, "Staff with ssn: " + ssn + " does not work at hotel " + hotelID,
+                     "EXISTS(SELECT 1 FROM Staff WHERE SSN = " + ssn + " AND employerID = " + hotelID + ")")
+            .require("Room", hotelID + ", " + roomNo, "Room id: " + roomNo + " not found", roomExists(hotelID, roomNo))
+            .values("(SELECT COALESCE(MAX(asgID), 0) + 1 FROM Assigned), '"+ ssn+"', '"+hotelID + "', '"+roomNo + "', CAST('" + assignDate + "' AS date)");
+         Row added = db.executeCheckedInsert(insert);
+         long asgID = added.getLong(0);
+         esql.journal("Assigned", String.valueOf(asgID), ssn, hotelID, roomNo, assignDate);
          System.out.println("Added house cleaning assignment");
-         esql.executeQuery("SELECT asgID, staffID, hotelID, roomNo FROM Assigned WHERE asgID='" + asgID + "'");
+         added.print(insert.columns());
       } catch (Exception e){
          System.err.println(e.getMessage());
       }
    }//end assignHouseCleaningToRoom
    
+   public static void assignHouseCleaningForDay(DBProject esql){
+      // Given a date, assign the rooms booked that day in every hotel to the house cleaning
+      // staff of that hotel, spreading the rooms evenly over the staff.  Rooms already
+      // assigned for the date are skipped, so running it again only adds rooms booked since.
+      try {
+         System.out.print("Enter date (YYYY-MM-DD): ");
+         String date = in.readLine().trim();
+
+         while (!date.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            System.out.println("Date format YYYY-MM-DD, please enter again: ");
+            date = in.readLine().trim();
+         }
+
+         int assigned = 0;
+         List<String> unstaffed = new ArrayList<String>();
+         for (DBProject db : esql.shards()) {
+            Map<Long, List<Long>> rooms = groupByHotel(db.executeQueryAndReturnRows(
+               "SELECT DISTINCT B.hotelID, B.roomNo FROM Booking B WHERE B.stay @> '" + date + "'::date " +
+               "AND NOT EXISTS(SELECT 1 FROM Assigned A WHERE A.hotelID = B.hotelID AND A.roomNo = B.roomNo " +
+               "AND A.assignDate = '" + date + "') ORDER BY B.hotelID, B.roomNo"));
+            Map<Long, List<Long>> cleaners = groupByHotel(db.executeQueryAndReturnRows(
+               "SELECT employerID, SSN FROM Staff WHERE role = 'HouseCleaning' ORDER BY employerID, SSN"));
+
+            // hotels are independent, so their rooms are shared out in parallel
+            List<long[]> assignments = rooms.entrySet().parallelStream()
+               .flatMap(hotel -> balanceRooms(hotel.getKey(), hotel.getValue(), cleaners.get(hotel.getKey())).stream())
+               .collect(Collectors.toList());
+            for (Long hotelID : rooms.keySet()) {
+               if (!cleaners.containsKey(hotelID)) {
+                  unstaffed.add(String.valueOf(hotelID));
+               }
+            }
+
+            final String day = date;
+            long firstID = db.onLane(() -> insertAssignments(db.connection(), day, assignments));
+            for (int i = 0; i < assignments.size(); i++) {
+               long[] a = assignments.get(i);
+               esql.journal("Assigned", String.valueOf(firstID + i), String.valueOf(a[0]), String.valueOf(a[1]), String.valueOf(a[2]), date);
+            }
+            assigned += assignments.size();
+         }
+         System.out.println("Added " + assigned + " house cleaning assignments for " + date);
+         if (!unstaffed.isEmpty()) {
+            System.out.println("Hotels with booked rooms but no house cleaning staff: " + String.join(", ", unstaffed));
+         }
+      } catch (Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end assignHouseCleaningForDay
+
+   /**
+    * Groups (hotelID, value) rows by hotel, keeping the row order.
+    */
+   static Map<Long, List<Long>> groupByHotel(List<Row> rows) {
+      Map<Long, List<Long>> grouped = new LinkedHashMap<Long, List<Long>>();
+      for (Row row : rows) {
+         Long hotelID = row.getLong(0);
+         List<Long> values = grouped.get(hotelID);
+         if (values == null) {
+            values = new ArrayList<Long>();
+            grouped.put(hotelID, values);
+         }
+         values.add(row.getLong(1));
+      }
+      return grouped;
+   }//end groupByHotel
+
+   /**
+    * Deals the rooms of one hotel out to its staff in turn, so no one gets
+    * more than one room above anyone else.
+    *
+    * @return {staffID, hotelID, roomNo} per room, empty without staff
+    */
+   static List<long[]> balanceRooms(long hotelID, List<Long> rooms, List<Long> staff) {
+      List<long[]> assignments = new ArrayList<long[]>();
+      if (staff == null || staff.isEmpty()) {
+         return assignments;
+      }
+      for (int i = 0; i < rooms.size(); i++) {
+         assignments.add(new long[] {staff.get(i % staff.size()), hotelID, rooms.get(i)});
+      }
+      return assignments;
+   }//end balanceRooms
+
+   /**
+    * Inserts {staffID, hotelID, roomNo} assignments for a day as one batch
+    * in a single transaction.  The table is locked against other writers so
+    * the block of asgIDs after MAX(asgID) stays free.  Rooms another run
+    * assigned for the day in the meantime are removed from the list first.
+    *
+    * @return the asgID of the first assignment
+    */
+   static long insertAssignments(Connection connection, String date, List<long[]> assignments) throws SQLException {
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+         Statement stmt = connection.createStatement();
+         stmt.executeUpdate("LOCK TABLE Assigned IN SHARE ROW EXCLUSIVE MODE");
+         ResultSet rs = stmt.executeQuery("SELECT hotelID, roomNo FROM Assigned WHERE assignDate = '" + date + "'");
+         Set<String> taken = new HashSet<String>();
+         while (rs.next()) {
+            taken.add(rs.getLong(1) + "/" + rs.getLong(2));
+         }
+         rs.close();
+         assignments.removeIf(a -> taken.contains(a[1] + "/" + a[2]));
+
+         rs = stmt.executeQuery("SELECT COALESCE(MAX(asgID), 0) + 1 FROM Assigned");
+         rs.next();
+         long firstID = rs.getLong(1);
+         rs.close();
+         stmt.close();
+
+         PreparedStatement insert = connection.prepareStatement(
+            "INSERT INTO Assigned(asgID, staffID, hotelID, roomNo, assignDate) VALUES (?, ?, ?, ?, CAST(? AS date))");
+         for (int i = 0; i < assignments.size(); i++) {
+            long[] a = assignments.get(i);
+            insert.setLong(1, firstID + i);
+            insert.setLong(2, a[0]);
+            insert.setLong(3, a[1]);
+            insert.setLong(4, a[2]);
+            insert.setString(5, date);
+            insert.addBatch();
+         }
+         insert.executeBatch();
+         insert.close();
+         connection.commit();
+         return firstID;
+      } catch (SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(autoCommit);
+      }
+   }//end insertAssignments
+
    public static void repairRequest(DBProject esql){
 	  // Given a hotelID, Staff SSN, roomNo, repairID , date create a repair request in the DB
       // Your code goes here.
@@ -679,13 +1884,7 @@ public class DBProject {
             System.out.print("Enter hotel id (only number): ");
             hotelID = in.readLine().trim();
          }
-
-         String searchID = "SELECT COUNT(*) FROM Hotel WHERE hotelID='" + hotelID + "'";
-         List<List<String>> hotelIDSet = esql.executeQueryAndReturnResult(searchID);
-         if(hotelIDSet.size() == 0){//
-            System.out.print("Hotel id: " + hotelID + " not found");
-            return;
-         }
+         DBProject db = esql.forHotel(hotelID);
 
          System.out.print("Enter staff SSN: ");
          String ssn = in.readLine().trim();
@@ -695,18 +1894,6 @@ public class DBProject {
             ssn = in.readLine().trim();
          }
 
-         String verifyManager = "SELECT role FROM Staff WHERE SSN=" + ssn;
-         List<List<String>> staffSet = esql.executeQueryAndReturnResult(verifyManager);
-         if(staffSet.size() == 0){
-            System.out.print("Staff with ssn: " + ssn + " not found");
-            return;
-         }
-         String role = staffSet.get(0).get(0);
-         if(!role.equals("Manager")){
-            System.out.println("Only manager can request repair. ");
-            return;
-         }
-
          System.out.print("Enter room number: ");
          String roomNo = in.readLine().trim();
 
@@ -726,14 +1913,6 @@ public class DBProject {
             date = in.readLine().trim();
          }
 
-         String reqIDQuery = "SELECT MAX(reqID) FROM Request";
-         int reqID = 1;
-         List<List<String>> result = esql.executeQueryAndReturnResult(reqIDQuery);
-         if(result.size() > 0 && result.get(0).get(0) != null){
-            reqID = Integer.parseInt(result.get(0).get(0))+1;
-         }
-         
-
          System.out.print("Enter description (optional, press ENTER to skip): ");
          String desc = in.readLine().trim();
 
@@ -741,11 +1920,17 @@ public class DBProject {
             desc = "";
          }
 
-         String query = "INSERT INTO Request(reqID, managerID, repairID, requestDate, description)" + 
-                        "VALUES ('" + reqID + "', '"+ssn+"', '"+repairID+"', '"+date+"', '"+desc+"')";
-         esql.executeUpdate(query);
+         CheckedInsert insert = new CheckedInsert("Request", "reqID", "managerID", "repairID", "requestDate", "description")
+            .require("Hotel", hotelID, "Hotel id: " + hotelID + " not found", hotelExists(hotelID))
+            .require("Staff", ssn, "Staff with ssn: " + ssn + " not found", "EXISTS(SELECT 1 FROM Staff WHERE SSN = " + ssn + ")")
+            .require("Staff", ssn, "Only manager can request repair.", "EXISTS(SELECT 1 FROM Staff WHERE SSN = " + ssn + " AND role = 'Manager')")
+            .require("Repair", repairID, "Repair id: " + repairID + " not found", "EXISTS(SELECT 1 FROM Repair WHERE rID = " + repairID + ")")
+            .values("(SELECT COALESCE(MAX(reqID), 0) + 1 FROM Request), '"+ssn+"', '"+repairID+"', '"+date+"', '"+desc+"'");
+         Row added = db.executeCheckedInsert(insert);
+         long reqID = added.getLong(0);
+         esql.journal("Request", String.valueOf(reqID), ssn, repairID, date, desc);
          System.out.println("Added repair request");
-         esql.executeQuery("SELECT reqID, managerID, repairID, requestDate, description FROM Request WHERE reqID = '"+reqID + "'");
+         added.print(insert.columns());
       } catch (Exception e){
          System.err.println(e.getMessage());
       }
@@ -763,11 +1948,11 @@ public class DBProject {
          System.out.print("\tEnter date (YYYY-MM-DD): ");
          String date = in.readLine();
 
-         // Query: Total rooms in hotel MINUS rooms booked on that specific date
+         // Query: Total rooms in hotel MINUS rooms with a stay covering that specific date
          String query = "SELECT (SELECT COUNT(*) FROM Room WHERE hotelID = " + hotelID + ") - " +
-                        "(SELECT COUNT(*) FROM Booking WHERE hotelID = " + hotelID + " AND bookingDate = '" + date + "')";
+                        "(SELECT COUNT(*) FROM Booking WHERE hotelID = " + hotelID + " AND stay @> '" + date + "'::date)";
 
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         List<List<String>> result = esql.forHotel(hotelID).executeQueryAndReturnResult(query);
          if(result.size() > 0) {
             System.out.println ("Number of rooms available for hotel " + hotelID + " on " + date + " is: " + result.get(0).get(0));
          }
@@ -789,11 +1974,11 @@ public class DBProject {
          System.out.print("\tEnter date (YYYY-MM-DD): ");
          String date = in.readLine();
 
-         // Query: Count bookings for this hotel on this date
+         // Query: Count stays for this hotel covering this date
          String query = "SELECT COUNT(*) FROM Booking WHERE hotelID = " + hotelID + 
-                        " AND bookingDate = '" + date + "'";
+                        " AND stay @> '" + date + "'::date";
 
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         List<List<String>> result = esql.forHotel(hotelID).executeQueryAndReturnResult(query);
          if(result.size() > 0) {
             System.out.println ("Number of rooms booked for hotel " + hotelID + " on " + date + " is: " + result.get(0).get(0));
          }
@@ -812,16 +1997,17 @@ public class DBProject {
          System.out.print("\tEnter date (YYYY-MM-DD): ");
          String date = in.readLine();
 
-         String query = "SELECT B.roomNo, B.bookingDate FROM Booking B " +
-                        "WHERE B.hotelID = " + hotelID + 
-                        " AND B.bookingDate >= '" + date + "' " +
-                        " AND B.bookingDate < '" + date + "'::date + interval '7 days'";
+         // stays overlapping [date, date + 7 days)
+         String query = "SELECT B.roomNo, lower(B.stay), upper(B.stay) FROM Booking B " +
+                        "WHERE B.hotelID = " + hotelID.trim() +
+                        " AND B.stay && daterange('" + date.trim() + "', '" + date.trim() + "'::date + 7) " +
+                        "ORDER BY B.roomNo, lower(B.stay)";
 
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         List<List<String>> result = esql.forHotel(hotelID.trim()).executeQueryAndReturnResult(query);
          if(result.size() > 0) {
             System.out.println ("Rooms booked for hotel " + hotelID + " for the week starting " + date + ":");
             for (List<String> row : result) {
-               System.out.println("Room No: " + row.get(0) + ", Booking Date: " + row.get(1));
+               System.out.println("Room No: " + row.get(0) + ", Check-in: " + row.get(1) + ", Check-out: " + row.get(2));
             }
          } else {
             System.out.println("No rooms booked for hotel " + hotelID + " for the week starting " + date);
@@ -846,12 +2032,13 @@ public class DBProject {
 
          String query = "SELECT R.hotelID, R.roomNo, MAX(B.price) AS max_price " +
                         "FROM Room R JOIN Booking B ON R.hotelID = B.hotelID AND R.roomNo = B.roomNo " +
-                        "WHERE B.bookingDate >= '" + startDate + "' AND B.bookingDate <= '" + endDate + "' " +
+                        "WHERE B.stay && daterange('" + startDate + "', '" + endDate + "', '[]') " +
                         "GROUP BY R.hotelID, R.roomNo " +
                         "ORDER BY max_price DESC " +
                         "LIMIT " + k;
 
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         // every shard returns its own top K rooms, the global top K is among them
+         List<List<String>> result = mergeTopK(esql.scatterGather(query), 2, k);
          if(result.size() > 0) {
             System.out.println ("Top " + k + " rooms with highest price from " + startDate + " to " + endDate + ":");
             for (List<String> row : result) {
@@ -885,7 +2072,7 @@ public class DBProject {
                         "AND C.fName = '" + fName + "' AND C.lName = '" + lName + "' " +
                         "ORDER BY B.price DESC LIMIT " + k;
          
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         List<List<String>> result = mergeTopK(esql.scatterGather(query), 3, Integer.parseInt(k.trim()));
          
          if(result.size() > 0) {
              System.out.println("Top " + k + " Highest Price Bookings for " + fName + " " + lName + ":");
@@ -926,10 +2113,9 @@ public class DBProject {
                         "WHERE B.customer = C.customerID " +
                         "AND B.hotelID = " + hotelID + " " +
                         "AND C.fName = '" + fName + "' AND C.lName = '" + lName + "' " +
-                        "AND B.bookingDate >= '" + startDate + "' " +
-                        "AND B.bookingDate <= '" + endDate + "'";
+                        "AND B.stay && daterange('" + startDate + "', '" + endDate + "', '[]')";
 
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         List<List<String>> result = esql.forHotel(hotelID).executeQueryAndReturnResult(query);
          if(result.size() > 0) {
             String totalCost = result.get(0).get(0);
             System.out.println("Total cost incurred by " + fName + " " + lName + 
@@ -954,7 +2140,10 @@ public class DBProject {
                         "WHERE R.mCompany = M.cmpID " +
                         "AND M.name = '" + companyName + "'";
 
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         List<List<String>> result = new ArrayList<List<String>>();
+         for (List<List<String>> part : esql.scatterGather(query)) {
+            result.addAll(part);
+         }
          if(result.size() > 0) {
             System.out.println("Repairs made by " + companyName + ":");
             System.out.println("RepairType\tHotelID\tRoomNo");
@@ -976,15 +2165,41 @@ public class DBProject {
          System.out.print("\tEnter K: ");
          String k = in.readLine();
 
-         String query = "SELECT M.name, COUNT(R.rID) AS repair_count " +
-                        "FROM MaintenanceCompany M LEFT JOIN Repair R ON M.cmpID = R.mCompany " +
-                        "GROUP BY M.name " +
-                        "ORDER BY repair_count DESC " +
-                        "LIMIT " + k;
+         List<DBProject> shards = esql.shards();
+         boolean fromView = esql.viewIsFresh("mv_company_repairs");
+         String query = fromView
+            ? "SELECT name, SUM(repair_count) AS repair_count FROM mv_company_repairs GROUP BY name ORDER BY repair_count DESC"
+            : "SELECT M.name, COUNT(R.rID) AS repair_count " +
+              "FROM MaintenanceCompany M LEFT JOIN Repair R ON M.cmpID = R.mCompany " +
+              "GROUP BY M.name " +
+              "ORDER BY repair_count DESC";
+         if (shards.size() == 1) {
+            query += " LIMIT " + k;
+         }
 
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         // a company repairs rooms on many shards, so the counts are summed before the top K is taken
+         Map<String, Long> counts = new LinkedHashMap<String, Long>();
+         for (List<Row> part : esql.scatterGatherRows(query)) {
+            for (Row row : part) {
+               Long count = counts.get(row.getString(0));
+               counts.put(row.getString(0), (count == null ? 0L : count) + row.getLong(1));
+            }
+         }
+         List<List<String>> totals = new ArrayList<List<String>>();
+         for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            List<String> row = new ArrayList<String>();
+            row.add(entry.getKey());
+            row.add(String.valueOf(entry.getValue()));
+            totals.add(row);
+         }
+         List<List<List<String>>> merged = new ArrayList<List<List<String>>>();
+         merged.add(totals);
+         List<List<String>> result = mergeTopK(merged, 1, Integer.parseInt(k.trim()));
          if(result.size() > 0) {
             System.out.println("Top " + k + " Maintenance Companies based on repair count:");
+            if (fromView) {
+               System.out.println("(" + esql._views.describe("mv_company_repairs") + ")");
+            }
             System.out.println("Company Name\tRepair Count");
             for (List<String> row : result) {
                System.out.println(row.get(0) + "\t" + row.get(1));
@@ -1007,15 +2222,23 @@ public class DBProject {
          System.out.print("\tEnter room number: ");
          String roomNo = in.readLine();
 
-         String query = "SELECT EXTRACT(YEAR FROM R.repairDate) AS repair_year, COUNT(R.rID) AS repair_count " +
-                        "FROM Repair R " +
-                        "WHERE R.hotelID = " + hotelID + " AND R.roomNo = " + roomNo + " " +
-                        "GROUP BY repair_year " +
-                        "ORDER BY repair_year";
-
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         boolean fromView = esql.viewIsFresh("mv_room_repairs_per_year");
+         String query = fromView
+            ? "SELECT repair_year, repair_count FROM mv_room_repairs_per_year " +
+              "WHERE hotelID = " + hotelID + " AND roomNo = " + roomNo + " " +
+              "ORDER BY repair_year"
+            : "SELECT EXTRACT(YEAR FROM R.repairDate) AS repair_year, COUNT(R.rID) AS repair_count " +
+              "FROM Repair R " +
+              "WHERE R.hotelID = " + hotelID + " AND R.roomNo = " + roomNo + " " +
+              "GROUP BY repair_year " +
+              "ORDER BY repair_year";
+
+         List<List<String>> result = esql.forHotel(hotelID).executeQueryAndReturnResult(query);
          if(result.size() > 0) {
             System.out.println("Number of repairs for room " + roomNo + " at hotel " + hotelID + " per year:");
+            if (fromView) {
+               System.out.println("(" + esql._views.describe("mv_room_repairs_per_year") + ")");
+            }
             System.out.println("Year\tRepair Count");
             for (List<String> row : result) {
                System.out.println(row.get(0) + "\t" + row.get(1));
@@ -1028,5 +2251,2980 @@ public class DBProject {
       }
    }//end numberOfRepairsForEachRoomPerYear
 
+   public static void analyticBookingTotals(DBProject esql){
+      // Given an optional hotelID and customerID and a date range, get the number of bookings,
+      // total and highest price from the columnar booking store, timed against the same SQL
+      try{
+         System.out.print("\tEnter hotelID (press ENTER for all hotels): ");
+         String hotelID = in.readLine().trim();
+
+         System.out.print("\tEnter customer id (press ENTER for all customers): ");
+         String customerID = in.readLine().trim();
+
+         System.out.print("\tEnter start date (YYYY-MM-DD): ");
+         String startDate = in.readLine().trim();
+
+         System.out.print("\tEnter end date (YYYY-MM-DD): ");
+         String endDate = in.readLine().trim();
+
+         if (esql._bookingStore == null) {
+            long loadStart = System.nanoTime();
+            esql._bookingStore = BookingColumnStore.load(esql);
+            System.out.println("Loaded " + esql._bookingStore.size() + " bookings into the columnar store in " +
+                               (System.nanoTime() - loadStart) / 1000000 + " ms");
+         }
+
+         int hotel = hotelID.isEmpty() ? BookingColumnStore.ANY : Integer.parseInt(hotelID);
+         int customer = customerID.isEmpty() ? BookingColumnStore.ANY : Integer.parseInt(customerID);
+         int fromDay = (int) LocalDate.parse(startDate).toEpochDay();
+         int toDay = (int) LocalDate.parse(endDate).toEpochDay();
+
+         long storeStart = System.nanoTime();
+         long[] totals = esql._bookingStore.aggregate(hotel, customer, fromDay, toDay);
+         long storeNanos = System.nanoTime() - storeStart;
+
+         // the store keeps only check-in days, so the reference query filters on check-in too
+         String query = "SELECT COUNT(*), SUM(B.price), MAX(B.price) FROM Booking B " +
+                        "WHERE B.bookingDate >= '" + startDate + "' AND B.bookingDate <= '" + endDate + "'" +
+                        (hotelID.isEmpty() ? "" : " AND B.hotelID = " + hotelID) +
+                        (customerID.isEmpty() ? "" : " AND B.customer = " + customerID);
+         long sqlStart = System.nanoTime();
+         List<List<Row>> sqlResult = hotelID.isEmpty() ? esql.scatterGatherRows(query) : Collections.singletonList(esql.forHotel(hotelID).executeQueryAndReturnRows(query));
+         long sqlNanos = System.nanoTime() - sqlStart;
+
+         long sqlCount = 0;
+         for (List<Row> part : sqlResult) {
+            sqlCount += part.get(0).getLong(0);
+         }
+
+         System.out.println("Bookings: " + totals[0] +
+                            ", Total price: " + BigDecimal.valueOf(totals[1], 2) +
+                            ", Highest price: " + (totals[0] == 0 ? "-" : BigDecimal.valueOf(totals[2], 2).toString()));
+         System.out.printf("Columnar store: %.3f ms, SQL: %.3f ms (%d bookings)%n", storeNanos / 1e6, sqlNanos / 1e6, sqlCount);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end analyticBookingTotals
+
+   public static void occupancyReport(DBProject esql){
+      // Given a date range, get the occupancy rate, booked room-nights and revenue of every hotel
+      try{
+         System.out.print("\tEnter start date (YYYY-MM-DD): ");
+         String startDate = in.readLine().trim();
+
+         System.out.print("\tEnter end date (YYYY-MM-DD): ");
+         String endDate = in.readLine().trim();
+
+         long days = LocalDate.parse(endDate).toEpochDay() - LocalDate.parse(startDate).toEpochDay() + 1;
+         if (days <= 0) {
+            System.out.println("End date must not be before start date");
+            return;
+         }
+
+         esql.onLane(() -> {
+            // on a lane the tasks borrow the lane's connections, so its budget and statement timeout apply
+            Lane lane = Lane.CURRENT.get();
+            ForkJoinPool pool = new ForkJoinPool(lane == null ? Integer.getInteger("reportThreads", 4) : lane.threads);
+            try {
+               System.out.printf("%-8s  %-6s  %-11s  %-10s  %s%n", "HotelID", "Rooms", "RoomNights", "Occupancy", "Revenue");
+               int hotels = 0;
+               for (DBProject shard : esql.shards()) {
+                  List<Row> bounds = shard.executeQueryAndReturnRows("SELECT MIN(hotelID), MAX(hotelID) FROM Room");
+                  if (bounds.isEmpty() || bounds.get(0).isNull(0)) {
+                     continue;
+                  }
+                  int lo = bounds.get(0).getInt(0);
+                  int hi = bounds.get(0).getInt(1);
+                  for (OccupancyPartition part = pool.invoke(new OccupancyTask(shard, lane, lo, hi, startDate, endDate));
+                       part != null; part = part.next) {
+                     hotels += part.print(days);
+                  }
+               }
+               System.out.println(hotels + " hotels from " + startDate + " to " + endDate);
+            } finally {
+               pool.shutdown();
+            }
+            return null;
+         });
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end occupancyReport
+
+   public static void bookingCubeReport(DBProject esql){
+      // Given optional hotel, month range and room type filters, get booking count, revenue,
+      // highest price and guests, grouped by any of hotel, month and room type
+      try{
+         System.out.print("\tEnter hotelID (press ENTER for all hotels): ");
+         String hotelID = in.readLine().trim();
+
+         System.out.print("\tEnter first month (YYYY-MM, press ENTER for no limit): ");
+         String fromMonth = in.readLine().trim();
+
+         System.out.print("\tEnter last month (YYYY-MM, press ENTER for no limit): ");
+         String toMonth = in.readLine().trim();
+
+         System.out.print("\tEnter room type (press ENTER for all types): ");
+         String roomType = in.readLine().trim();
+
+         System.out.print("\tGroup by (h = hotel, m = month, t = room type, e.g. hm; press ENTER for a grand total): ");
+         String groupBy = in.readLine().trim().toLowerCase();
+
+         if (esql._bookingCube == null) {
+            long buildStart = System.nanoTime();
+            esql._bookingCube = BookingCube.build(esql);
+            System.out.println("Built booking cube with " + esql._bookingCube.size() + " cells in " +
+                               (System.nanoTime() - buildStart) / 1000000 + " ms");
+         }
+
+         long queryStart = System.nanoTime();
+         Map<BookingCube.Key, BookingCube.Cell> result = esql._bookingCube.query(
+            hotelID.isEmpty() ? BookingCube.ALL : Integer.parseInt(hotelID),
+            fromMonth.isEmpty() ? BookingCube.ALL : BookingCube.month(fromMonth),
+            toMonth.isEmpty() ? BookingCube.ALL : BookingCube.month(toMonth),
+            roomType.isEmpty() ? null : roomType,
+            groupBy.contains("h"), groupBy.contains("m"), groupBy.contains("t"));
+         long queryNanos = System.nanoTime() - queryStart;
+
+         System.out.printf("%-8s  %-7s  %-10s  %-8s  %-12s  %-10s  %s%n", "HotelID", "Month", "RoomType", "Bookings", "Revenue", "MaxPrice", "Guests");
+         for (Map.Entry<BookingCube.Key, BookingCube.Cell> entry : result.entrySet()) {
+            BookingCube.Key key = entry.getKey();
+            BookingCube.Cell cell = entry.getValue();
+            System.out.printf("%-8s  %-7s  %-10s  %-8d  %-12s  %-10s  %d%n",
+                              key.hotelID == BookingCube.ALL ? "*" : String.valueOf(key.hotelID),
+                              key.month == BookingCube.ALL ? "*" : String.format("%04d-%02d", key.month / 100, key.month % 100),
+                              key.roomType == null ? "*" : key.roomType,
+                              cell.count, BigDecimal.valueOf(cell.sumCents, 2), BigDecimal.valueOf(cell.maxCents, 2), cell.sumPeople);
+         }
+         System.out.printf("%d rows in %.3f ms%n", result.size(), queryNanos / 1e6);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end bookingCubeReport
+
+   public static void listJournalChanges(DBProject esql){
+      // Given a sequence number, list the journaled changes from that point on
+      try{
+         if (esql._journal == null) {
+            System.out.println("The change journal is off, start the program with -Djournal.dir=<directory>");
+            return;
+         }
+         System.out.print("\tEnter first sequence number (press ENTER for all): ");
+         String from = in.readLine().trim();
+
+         ChangeJournal.Reader reader = new ChangeJournal.Reader(esql._journal.directory(), from.isEmpty() ? 0 : Long.parseLong(from));
+         try {
+            int count = 0;
+            for (ChangeJournal.Record record = reader.poll(); record != null; record = reader.poll()) {
+               System.out.println(record);
+               ++count;
+            }
+            System.out.println(count + " changes");
+         } finally {
+            reader.close();
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end listJournalChanges
+
+   /**
+    * Logs statements that ran longer than a threshold (-Dslow.ms, 1000 by
+    * default, negative to turn off) to slow-operations.log with the menu
+    * operation that issued them and their time.  Each one is also run again
+    * as EXPLAIN (ANALYZE, BUFFERS) on a side connection, in a transaction
+    * that is rolled back, and the plan goes to slow-plans.log; writes and
+    * queries with side effects are only EXPLAINed, not run again.  Both files
+    * live in -Dslow.dir and roll over at -Dslow.maxBytes, keeping five old
+    * files.  Explaining happens on a background thread.
+    */
+   static class SlowOperationLog {
+      // operation name for statements run on other threads (scatter queries)
+      static final ThreadLocal<String> OPERATION = new ThreadLocal<String>();
+
+      private static final List<String> HELPER_METHODS = Arrays.asList(
+         "executeUpdate", "executeQuery", "executeQueryAndReturnResult", "executeQueryAndReturnRows", "checkSlow",
+         "executeCheckedInsert", "executeCheckedInsertOnAllShards",
+         "onEveryShard", "onLane", "scatterGather", "scatterGatherRows",
+         "executeUpdateOnAllShards", "currentOperation", "getStackTrace");
+
+      final long thresholdNanos;
+      private final RotatingLog operations;
+      private final RotatingLog plans;
+      private final ExecutorService explainer = Executors.newSingleThreadExecutor(r -> {
+         Thread t = new Thread(r, "slow-operation-explainer");
+         t.setDaemon(true);
+         return t;
+      });
+
+      SlowOperationLog(long thresholdMillis, File dir, long maxBytes) {
+         this.thresholdNanos = thresholdMillis * 1000000L;
+         this.operations = new RotatingLog(new File(dir, "slow-operations.log"), maxBytes, 5);
+         this.plans = new RotatingLog(new File(dir, "slow-plans.log"), maxBytes, 5);
+      }
+
+      static SlowOperationLog fromSystemProperties() {
+         long threshold = Long.getLong("slow.ms", 1000);
+         if (threshold < 0) {
+            return null;
+         }
+         return new SlowOperationLog(threshold, new File(System.getProperty("slow.dir", ".")), Long.getLong("slow.maxBytes", 1 << 20));
+      }
+
+      /**
+       * Name of the menu operation on the call stack, e.g. totalCostForCustomer.
+       */
+      static String currentOperation() {
+         String operation = OPERATION.get();
+         if (operation != null) {
+            return operation;
+         }
+         for (StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+            if (frame.getClassName().equals(DBProject.class.getName()) &&
+                !HELPER_METHODS.contains(frame.getMethodName()) && !frame.getMethodName().startsWith("lambda$")) {
+               return frame.getMethodName();
+            }
+         }
+         return "unknown";
+      }
+
+      void record(final DBProject db, final String operation, final String sql, long nanos) {
+         final String when = new Timestamp(System.currentTimeMillis()).toString();
+         final String summary = String.format("%s  %s  %.1f ms  %s", when, operation, nanos / 1e6, sql.replaceAll("\\s+", " "));
+         operations.append(summary);
+         explainer.submit(() -> {
+            StringBuilder plan = new StringBuilder(summary).append('\n');
+            boolean read = isRead(sql);
+            try {
+               Connection connection = db.explainConnection();
+               // whatever the statement does when analyzed is rolled back
+               connection.setAutoCommit(false);
+               Statement stmt = connection.createStatement();
+               try {
+                  ResultSet rs = stmt.executeQuery((read ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql);
+                  while (rs.next()) {
+                     plan.append("   ").append(rs.getString(1)).append('\n');
+                  }
+                  rs.close();
+               } finally {
+                  stmt.close();
+                  connection.rollback();
+                  connection.setAutoCommit(true);
+               }
+            } catch (SQLException e) {
+               plan.append("   EXPLAIN failed: ").append(e.getMessage()).append('\n');
+            }
+            plans.append(plan.toString());
+         });
+      }
+
+      /**
+       * Whether the statement only reads, so it can be run again under
+       * EXPLAIN ANALYZE.  A WITH query may wrap an INSERT, as a CheckedInsert
+       * does, so the whole text is checked for data-modifying statements.
+       * Sequence and advisory lock functions are not undone by the rollback
+       * around the EXPLAIN, so queries calling them are only EXPLAINed too.
+       */
+      static boolean isRead(String sql) {
+         String text = sql.trim().toUpperCase();
+         return text.matches("(?s)^(SELECT|WITH)\\b.*") &&
+                !text.matches("(?s).*\\b(INSERT|UPDATE|DELETE|NEXTVAL|SETVAL|PG_(TRY_)?ADVISORY_\\w*)\\b.*");
+      }
+
+      /**
+       * Waits a little for plans still being explained, then stops.
+       */
+      void close() {
+         explainer.shutdown();
+         try {
+            explainer.awaitTermination(5, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }//end SlowOperationLog
+
+   /**
+    * Text log file that is renamed to name.1 (name.1 to name.2, ...) once it
+    * reaches a size, keeping a fixed number of old files.
+    */
+   static class RotatingLog {
+      private final File file;
+      private final long maxBytes;
+      private final int keep;
+
+      RotatingLog(File file, long maxBytes, int keep) {
+         this.file = file;
+         this.maxBytes = maxBytes;
+         this.keep = keep;
+      }
+
+      synchronized void append(String entry) {
+         byte[] bytes = (entry + "\n").getBytes(StandardCharsets.UTF_8);
+         try {
+            if (file.length() > 0 && file.length() + bytes.length > maxBytes) {
+               rotate();
+            }
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+               out.write(bytes);
+            } finally {
+               out.close();
+            }
+         } catch (IOException e) {
+            System.err.println("Unable to write " + file + ": " + e.getMessage());
+         }
+      }
+
+      private void rotate() throws IOException {
+         File oldest = new File(file.getPath() + "." + keep);
+         Files.deleteIfExists(oldest.toPath());
+         for (int i = keep - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists()) {
+               Files.move(older.toPath(), new File(file.getPath() + "." + (i + 1)).toPath());
+            }
+         }
+         Files.move(file.toPath(), new File(file.getPath() + ".1").toPath());
+      }
+   }//end RotatingLog
+
+   // tables of create.sql with the columns their rows are exported in order of
+   private static final String[][] EXPORT_TABLES = {
+      {"Hotel", "hotelID"},
+      {"Staff", "SSN"},
+      {"Room", "hotelID, roomNo"},
+      {"Customer", "customerID"},
+      {"MaintenanceCompany", "cmpID"},
+      {"Booking", "bID"},
+      {"Repair", "rID"},
+      {"Request", "reqID"},
+      {"Assigned", "asgID"}
+   };
+
+   // tables every shard holds a full copy of, exported from the first shard only
+   private static final List<String> REPLICATED_TABLES = Arrays.asList("Hotel", "Staff", "Customer", "MaintenanceCompany");
+
+   public static void exportTables(DBProject esql){
+      // Given a directory, write every table to a compressed columnar file there.  In incremental
+      // mode only rows with a key past the one exported last time are written.
+      try{
+         System.out.print("\tEnter export directory: ");
+         File dir = new File(in.readLine().trim());
+
+         System.out.print("\tIncremental export? (y/n): ");
+         boolean incremental = in.readLine().trim().equalsIgnoreCase("y");
+
+         if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Unable to create directory " + dir);
+            return;
+         }
+         File stateFile = new File(dir, "export.state");
+         Properties state = new Properties();
+         if (incremental && stateFile.exists()) {
+            FileInputStream stateIn = new FileInputStream(stateFile);
+            try {
+               state.load(stateIn);
+            } finally {
+               stateIn.close();
+            }
+         }
+
+         String run = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+         List<DBProject> shards = esql.shards();
+         for (String[] table : EXPORT_TABLES) {
+            for (int i = 0; i < shards.size(); i++) {
+               if (i > 0 && REPLICATED_TABLES.contains(table[0])) {
+                  continue;
+               }
+               String name = shards.size() == 1 ? table[0] : table[0] + ".s" + i;
+               File out = new File(dir, name + "." + run + ".hcol");
+               final DBProject shard = shards.get(i);
+               long rows = esql.onLane(() -> exportTable(shard, table[0], table[1], state, name, out));
+               System.out.println(name + ": " + rows + " rows" + (rows > 0 ? " -> " + out.getName() : ""));
+            }
+            // save after every table so a failed run keeps the progress made
+            File tmp = new File(dir, "export.state.tmp");
+            FileOutputStream stateOut = new FileOutputStream(tmp);
+            try {
+               state.store(stateOut, "last exported key per table");
+            } finally {
+               stateOut.close();
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end exportTables
+
+   /**
+    * Streams the rows of one table past the last exported key through a
+    * cursor into a columnar file and records the new last key in the state.
+    * The file is removed again when there was nothing new to export.
+    *
+    * @return the number of rows exported
+    */
+   static long exportTable(DBProject db, String table, String keyColumns, Properties state, String stateKey, File out)
+         throws SQLException, IOException {
+      String[] keys = keyColumns.split(",\\s*");
+      String lastKey = state.getProperty(stateKey);
+      String query = "SELECT * FROM " + table +
+                     (lastKey == null ? "" : " WHERE (" + keyColumns + ") > (" + lastKey + ")") +
+                     " ORDER BY " + keyColumns;
+
+      // on a lane this is the lane's connection to db, with its statement timeout
+      Connection connection = db.connection();
+      long rows = 0;
+      try {
+         // the bundled driver reads whole result sets and has no fetch size, so rows are
+         // streamed through an explicit cursor, one row group per FETCH; it lives until commit
+         connection.setAutoCommit(false);
+         Statement stmt = connection.createStatement();
+         ColumnarExportWriter writer = null;
+         try {
+            stmt.execute("DECLARE export_rows NO SCROLL CURSOR FOR " + query);
+            StringBuilder key = new StringBuilder();
+            int fetched;
+            do {
+               ResultSet rs = stmt.executeQuery("FETCH FORWARD " + ColumnarExportWriter.ROWS_PER_GROUP + " FROM export_rows");
+               if (writer == null) {
+                  writer = new ColumnarExportWriter(out, rs.getMetaData());
+               }
+               fetched = 0;
+               while (rs.next()) {
+                  writer.add(rs);
+                  ++fetched;
+                  key.setLength(0);
+                  for (String column : keys) {
+                     key.append(key.length() == 0 ? "" : ", ").append(rs.getString(column));
+                  }
+               }
+               rs.close();
+               rows += fetched;
+            } while (fetched == ColumnarExportWriter.ROWS_PER_GROUP);
+            if (rows > 0) {
+               state.setProperty(stateKey, key.toString());
+            }
+         } finally {
+            if (writer != null) {
+               writer.close();
+            }
+            stmt.close();
+         }
+         connection.commit();
+      } finally {
+         connection.rollback();
+         connection.setAutoCommit(true);
+      }
+      if (rows == 0) {
+         out.delete();
+      }
+      return rows;
+   }//end exportTable
+
+   /**
+    * Writes rows to a columnar file.  Layout:
+    *
+    *    "HCOL", version byte, short column count,
+    *    per column: name (short length, UTF-8), type byte, scale byte
+    *    row groups: int row count, int raw length, int compressed length, deflated bytes
+    *
+    * Inside a row group every column is stored on its own: a null bitmap,
+    * then longs for INT64 and DECIMAL (unscaled), ints of days since
+    * 1970-01-01 for DATE, a byte per row for BOOL, length-prefixed UTF-8 for
+    * TEXT.  DICT columns (CHAR and enum types) store an int code per row and
+    * start with the count and the entries first used in that row group, so
+    * the file can be read front to back.  A DICT column that passes
+    * MAX_DICTIONARY distinct values is written as TEXT from that row group
+    * on, each such group starting with a count of -1.  Only one row group
+    * and dictionaries of bounded size are held in memory.
+    */
+   static class ColumnarExportWriter {
+      static final int ROWS_PER_GROUP = 8192;
+      static final int MAX_DICTIONARY = 65536;
+
+      static final byte INT64 = 1;
+      static final byte DECIMAL = 2;
+      static final byte DATE = 3;
+      static final byte DICT = 4;
+      static final byte BOOL = 5;
+      static final byte TEXT = 6;
+
+      private final FileChannel channel;
+      private final int columns;
+      private final byte[] types;
+      private final int[] scales;
+      private final long[][] numbers;
+      private final String[][] strings;
+      private final boolean[][] nulls;
+      private final List<Map<String, Integer>> dictionaries = new ArrayList<Map<String, Integer>>();
+      private final int[] dictionaryWritten;
+      private final boolean[] plain;   // DICT columns that outgrew their dictionary
+      private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      private final byte[] chunk = new byte[64 * 1024];
+      private int rows = 0;
+
+      ColumnarExportWriter(File file, ResultSetMetaData meta) throws SQLException, IOException {
+         this.columns = meta.getColumnCount();
+         this.types = new byte[columns];
+         this.scales = new int[columns];
+         this.numbers = new long[columns][];
+         this.strings = new String[columns][];
+         this.nulls = new boolean[columns][ROWS_PER_GROUP];
+         this.dictionaryWritten = new int[columns];
+         this.plain = new boolean[columns];
+
+         ByteBuffer header = ByteBuffer.allocate(8 + columns * 260);
+         header.put("HCOL".getBytes(StandardCharsets.US_ASCII)).put((byte) 2).putShort((short) columns);
+         for (int c = 0; c < columns; c++) {
+            String typeName = meta.getColumnTypeName(c + 1).toLowerCase();
+            int scale = meta.getScale(c + 1);
+            if (typeName.equals("numeric") && scale > 0 && scale <= 18) {
+               types[c] = DECIMAL;
+               scales[c] = scale;
+            } else if (typeName.equals("numeric") || typeName.startsWith("int")) {
+               types[c] = INT64;
+            } else if (typeName.equals("date")) {
+               types[c] = DATE;
+            } else if (typeName.equals("bool")) {
+               types[c] = BOOL;
+            } else if (typeName.equals("text") || typeName.equals("varchar") || typeName.equals("daterange")) {
+               types[c] = TEXT;
+            } else {
+               // bpchar and the enum types have few distinct values
+               types[c] = DICT;
+            }
+            if (types[c] == TEXT || types[c] == DICT) {
+               strings[c] = new String[ROWS_PER_GROUP];
+            } else {
+               numbers[c] = new long[ROWS_PER_GROUP];
+            }
+            dictionaries.add(new LinkedHashMap<String, Integer>());
+            byte[] name = meta.getColumnName(c + 1).getBytes(StandardCharsets.UTF_8);
+            header.putShort((short) name.length).put(name).put(types[c]).put((byte) scales[c]);
+         }
+         this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+         header.flip();
+         write(header);
+      }
+
+      void add(ResultSet rs) throws SQLException, IOException {
+         for (int c = 0; c < columns; c++) {
+            String value = rs.getString(c + 1);
+            nulls[c][rows] = value == null;
+            if (value == null) {
+               continue;
+            }
+            switch (types[c]) {
+               case INT64: numbers[c][rows] = new BigDecimal(value).longValueExact(); break;
+               case DECIMAL: numbers[c][rows] = new BigDecimal(value).setScale(scales[c]).unscaledValue().longValue(); break;
+               case DATE: numbers[c][rows] = LocalDate.parse(value).toEpochDay(); break;
+               case BOOL: numbers[c][rows] = value.startsWith("t") ? 1 : 0; break;
+               default: strings[c][rows] = value; break;
+            }
+         }
+         if (++rows == ROWS_PER_GROUP) {
+            flushGroup();
+         }
+      }
+
+      private void flushGroup() throws IOException {
+         if (rows == 0) {
+            return;
+         }
+         ByteArrayOutputStream raw = new ByteArrayOutputStream(rows * columns * 8);
+         DataOutputStream out = new DataOutputStream(raw);
+         for (int c = 0; c < columns; c++) {
+            byte[] bitmap = new byte[(rows + 7) / 8];
+            for (int r = 0; r < rows; r++) {
+               if (nulls[c][r]) {
+                  bitmap[r >>> 3] |= 1 << (r & 7);
+               }
+            }
+            out.write(bitmap);
+            switch (types[c]) {
+               case INT64:
+               case DECIMAL:
+                  for (int r = 0; r < rows; r++) {
+                     out.writeLong(numbers[c][r]);
+                  }
+                  break;
+               case DATE:
+                  for (int r = 0; r < rows; r++) {
+                     out.writeInt((int) numbers[c][r]);
+                  }
+                  break;
+               case BOOL:
+                  for (int r = 0; r < rows; r++) {
+                     out.writeByte((int) numbers[c][r]);
+                  }
+                  break;
+               case TEXT:
+                  for (int r = 0; r < rows; r++) {
+                     writeString(out, nulls[c][r] ? "" : strings[c][r]);
+                  }
+                  break;
+               default:
+                  Map<String, Integer> dictionary = dictionaries.get(c);
+                  int[] codes = plain[c] ? null : encode(c, dictionary);
+                  if (codes == null) {
+                     plain[c] = true;
+                     dictionary.clear();
+                     out.writeInt(-1);
+                     for (int r = 0; r < rows; r++) {
+                        writeString(out, nulls[c][r] ? "" : strings[c][r]);
+                     }
+                     break;
+                  }
+                  out.writeInt(dictionary.size() - dictionaryWritten[c]);
+                  int i = 0;
+                  for (String entry : dictionary.keySet()) {
+                     if (i++ >= dictionaryWritten[c]) {
+                        writeString(out, entry);
+                     }
+                  }
+                  dictionaryWritten[c] = dictionary.size();
+                  for (int code : codes) {
+                     out.writeInt(code);
+                  }
+                  break;
+            }
+         }
+         out.flush();
+         byte[] bytes = raw.toByteArray();
+
+         ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+         deflater.reset();
+         deflater.setInput(bytes);
+         deflater.finish();
+         while (!deflater.finished()) {
+            compressed.write(chunk, 0, deflater.deflate(chunk));
+         }
+         ByteBuffer groupHeader = ByteBuffer.allocate(12);
+         groupHeader.putInt(rows).putInt(bytes.length).putInt(compressed.size()).flip();
+         write(groupHeader);
+         write(ByteBuffer.wrap(compressed.toByteArray()));
+         rows = 0;
+      }
+
+      /**
+       * Returns the dictionary codes of the column's values in this row
+       * group, adding new values to the dictionary, or null once it would
+       * pass MAX_DICTIONARY entries.
+       */
+      private int[] encode(int c, Map<String, Integer> dictionary) {
+         int[] codes = new int[rows];
+         for (int r = 0; r < rows; r++) {
+            if (nulls[c][r]) {
+               continue;
+            }
+            Integer code = dictionary.get(strings[c][r]);
+            if (code == null) {
+               if (dictionary.size() == MAX_DICTIONARY) {
+                  return null;
+               }
+               code = dictionary.size();
+               dictionary.put(strings[c][r], code);
+            }
+            codes[r] = code;
+         }
+         return codes;
+      }
+
+      private static void writeString(DataOutputStream out, String value) throws IOException {
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+
+      private void write(ByteBuffer buffer) throws IOException {
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+      }
+
+      void close() throws IOException {
+         try {
+            flushGroup();
+         } finally {
+            deflater.end();
+            channel.close();
+         }
+      }
+   }//end ColumnarExportWriter
+
+   /**
+    * Append-only binary log of the rows written by this program, kept in
+    * memory-mapped segment files named after their first sequence number.
+    * A record is
+    *
+    *    int length, int crc32, long seq, long time, byte op,
+    *    table and values as (short length, UTF-8 bytes)
+    *
+    * and a zero length marks the end of the written part of a segment.
+    * Writers wait until their record has been forced to disk; one flusher
+    * thread forces all records appended during the commit window at once.
+    *
+    * The journal is a best-effort change feed, not a write-ahead log: rows
+    * are appended after their database transaction commits, so a crash in
+    * between loses the record, and the database stays the source of truth.
+    * The program only journals inserts; UPDATE and DELETE are reserved.
+    */
+   static class ChangeJournal {
+      static final byte INSERT = 1;
+      static final byte UPDATE = 2;
+      static final byte DELETE = 3;
+
+      private static final int HEADER_BYTES = 8;
+
+      private final File dir;
+      private final int segmentBytes;
+      private final long commitMicros;
+      private final Thread flusher;
+
+      private MappedByteBuffer segment;
+      private long nextSeq;
+      private long durableSeq;
+      private boolean closed = false;
+
+      ChangeJournal(File dir, int segmentBytes, long commitMicros) throws IOException {
+         this.dir = dir;
+         this.segmentBytes = segmentBytes;
+         this.commitMicros = commitMicros;
+         if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + dir);
+         }
+         File[] segments = segmentFiles(dir);
+         if (segments.length == 0) {
+            this.nextSeq = 1;
+            this.segment = map(segmentFile(dir, 1), segmentBytes, FileChannel.MapMode.READ_WRITE);
+         } else {
+            // recover the write position from the last segment
+            File last = segments[segments.length - 1];
+            this.segment = map(last, segmentBytes, FileChannel.MapMode.READ_WRITE);
+            this.nextSeq = firstSeq(last);
+            Record record;
+            while ((record = Record.read(this.segment)) != null) {
+               this.nextSeq = record.seq + 1;
+            }
+         }
+         this.durableSeq = this.nextSeq - 1;
+         this.flusher = new Thread(this::flushLoop, "journal-flusher");
+         this.flusher.setDaemon(true);
+         this.flusher.start();
+      }
+
+      File directory() {
+         return dir;
+      }
+
+      /**
+       * Appends a record and waits until it is durable.
+       *
+       * @return the sequence number of the record
+       */
+      long append(byte op, String table, String... values) throws IOException {
+         long seq;
+         synchronized (this) {
+            if (closed) {
+               throw new IOException("journal is closed");
+            }
+            seq = nextSeq;
+            byte[] record = Record.encode(seq, System.currentTimeMillis(), op, table, values);
+            if (record.length + HEADER_BYTES > segment.remaining()) {
+               rollover(seq);
+               if (record.length + HEADER_BYTES > segment.remaining()) {
+                  throw new IOException("record of " + record.length + " bytes does not fit in a journal segment");
+               }
+            }
+            segment.put(record);
+            nextSeq = seq + 1;
+            notifyAll();
+            while (durableSeq < seq) {
+               try {
+                  wait();
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new IOException("interrupted waiting for journal commit");
+               }
+            }
+         }
+         return seq;
+      }
+
+      private void rollover(long seq) throws IOException {
+         segment.force();
+         durableSeq = seq - 1;
+         segment = map(segmentFile(dir, seq), segmentBytes, FileChannel.MapMode.READ_WRITE);
+      }
+
+      private void flushLoop() {
+         while (true) {
+            MappedByteBuffer toForce;
+            synchronized (this) {
+               while (!closed && durableSeq == nextSeq - 1) {
+                  try {
+                     wait();
+                  } catch (InterruptedException e) {
+                     return;
+                  }
+               }
+               if (closed) {
+                  return;
+               }
+            }
+            // let other writers join this commit
+            try {
+               Thread.sleep(commitMicros / 1000, (int) (commitMicros % 1000) * 1000);
+            } catch (InterruptedException e) {
+               return;
+            }
+            long upTo;
+            synchronized (this) {
+               toForce = segment;
+               upTo = nextSeq - 1;
+            }
+            toForce.force();
+            synchronized (this) {
+               // a rollover in between has already forced the older records
+               if (toForce == segment && upTo > durableSeq) {
+                  durableSeq = upTo;
+               }
+               notifyAll();
+            }
+         }
+      }
+
+      void close() {
+         synchronized (this) {
+            if (closed) {
+               return;
+            }
+            closed = true;
+            segment.force();
+            durableSeq = nextSeq - 1;
+            notifyAll();
+         }
+      }
+
+      static File segmentFile(File dir, long firstSeq) {
+         return new File(dir, String.format("journal-%020d.seg", firstSeq));
+      }
+
+      static long firstSeq(File segment) {
+         String name = segment.getName();
+         return Long.parseLong(name.substring("journal-".length(), name.length() - ".seg".length()));
+      }
+
+      static File[] segmentFiles(File dir) {
+         File[] files = dir.listFiles((d, name) -> name.startsWith("journal-") && name.endsWith(".seg"));
+         if (files == null) {
+            return new File[0];
+         }
+         Arrays.sort(files);
+         return files;
+      }
+
+      static MappedByteBuffer map(File file, long size, FileChannel.MapMode mode) throws IOException {
+         RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+         try {
+            return raf.getChannel().map(mode, 0, mode == FileChannel.MapMode.READ_ONLY ? raf.length() : size);
+         } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+         }
+      }
+
+      /**
+       * One journaled change.
+       */
+      static class Record {
+         final long seq;
+         final long time;
+         final byte op;
+         final String table;
+         final String[] values;
+
+         Record(long seq, long time, byte op, String table, String[] values) {
+            this.seq = seq;
+            this.time = time;
+            this.op = op;
+            this.table = table;
+            this.values = values;
+         }
+
+         static byte[] encode(long seq, long time, byte op, String table, String[] values) {
+            int size = 8 + 8 + 1 + 2 + utf8(table).length + 2;
+            byte[][] encoded = new byte[values.length][];
+            for (int i = 0; i < values.length; i++) {
+               encoded[i] = utf8(values[i] == null ? "" : values[i]);
+               size += 2 + encoded[i].length;
+            }
+            ByteBuffer body = ByteBuffer.allocate(HEADER_BYTES + size);
+            body.position(HEADER_BYTES);
+            body.putLong(seq).putLong(time).put(op);
+            putString(body, utf8(table));
+            body.putShort((short) values.length);
+            for (byte[] value : encoded) {
+               putString(body, value);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), HEADER_BYTES, size);
+            body.putInt(0, size).putInt(4, (int) crc.getValue());
+            return body.array();
+         }
+
+         /**
+          * Reads the record at the buffer position and moves past it, or
+          * returns null and leaves the position alone when there is no
+          * complete record there yet.
+          */
+         static Record read(ByteBuffer buffer) {
+            int start = buffer.position();
+            if (buffer.remaining() < HEADER_BYTES) {
+               return null;
+            }
+            int size = buffer.getInt(start);
+            if (size <= 0 || size > buffer.remaining() - HEADER_BYTES) {
+               return null;
+            }
+            byte[] body = new byte[size];
+            ByteBuffer view = buffer.duplicate();
+            view.position(start + HEADER_BYTES);
+            view.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, size);
+            if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+               return null;
+            }
+            ByteBuffer in = ByteBuffer.wrap(body);
+            long seq = in.getLong();
+            long time = in.getLong();
+            byte op = in.get();
+            String table = getString(in);
+            String[] values = new String[in.getShort()];
+            for (int i = 0; i < values.length; i++) {
+               values[i] = getString(in);
+            }
+            buffer.position(start + HEADER_BYTES + size);
+            return new Record(seq, time, op, table, values);
+         }
+
+         private static byte[] utf8(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+         }
+
+         private static void putString(ByteBuffer buffer, byte[] value) {
+            buffer.putShort((short) value.length).put(value);
+         }
+
+         private static String getString(ByteBuffer buffer) {
+            byte[] value = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(value);
+            return new String(value, StandardCharsets.UTF_8);
+         }
+
+         @Override
+         public String toString() {
+            String name = op == INSERT ? "INSERT" : op == UPDATE ? "UPDATE" : op == DELETE ? "DELETE" : "OP" + op;
+            return seq + "  " + new Timestamp(time) + "  " + name + " " + table + " " + Arrays.toString(values);
+         }
+      }//end Record
+
+      /**
+       * Follows the journal from a sequence number on.  poll() returns null
+       * when the reader has caught up with the writer; calling it again
+       * later picks up newer records, including those in new segments.
+       */
+      static class Reader {
+         private final File dir;
+         private long nextSeq;
+         private File current = null;
+         private MappedByteBuffer buffer = null;
+
+         Reader(File dir, long fromSeq) {
+            this.dir = dir;
+            this.nextSeq = fromSeq;
+         }
+
+         Record poll() throws IOException {
+            while (true) {
+               if (buffer == null && !open()) {
+                  return null;
+               }
+               Record record = Record.read(buffer);
+               if (record != null) {
+                  if (record.seq < nextSeq) {
+                     continue;
+                  }
+                  nextSeq = record.seq + 1;
+                  return record;
+               }
+               // the segment is done once the writer has rolled over to a newer one,
+               // the mapping is shared so records appended later show up in place
+               if (!segmentFile(dir, nextSeq).exists()) {
+                  return null;
+               }
+               current = null;
+               buffer = null;
+            }
+         }
+
+         /**
+          * Maps the segment that holds nextSeq.
+          */
+         private boolean open() throws IOException {
+            File[] segments = segmentFiles(dir);
+            for (int i = segments.length - 1; i >= 0; i--) {
+               if (firstSeq(segments[i]) <= nextSeq || i == 0) {
+                  current = segments[i];
+                  buffer = map(current, 0, FileChannel.MapMode.READ_ONLY);
+                  return true;
+               }
+            }
+            return false;
+         }
+
+         void close() {
+            buffer = null;
+            current = null;
+         }
+      }//end Reader
+   }//end ChangeJournal
+
+   public static void customerLifetimeSpend(DBProject esql){
+      // Given a customer name, get the number of bookings, total spend and first and last booking date
+      try{
+         System.out.print("\tEnter Customer First Name: ");
+         String fName = in.readLine().trim();
+
+         System.out.print("\tEnter Customer Last Name: ");
+         String lName = in.readLine().trim();
+
+         boolean fromView = esql.viewIsFresh("mv_customer_spend");
+         String query = fromView
+            ? "SELECT S.customer, S.bookings, S.total_spend, S.first_booking, S.last_booking " +
+              "FROM mv_customer_spend S, Customer C " +
+              "WHERE S.customer = C.customerID AND C.fName = '" + fName + "' AND C.lName = '" + lName + "'"
+            : "SELECT B.customer, COUNT(*), SUM(B.price), MIN(B.bookingDate), MAX(B.bookingDate) " +
+              "FROM Booking B, Customer C " +
+              "WHERE B.customer = C.customerID AND C.fName = '" + fName + "' AND C.lName = '" + lName + "' " +
+              "GROUP BY B.customer";
+
+         // a customer books hotels on every shard, so the per-shard totals are combined
+         Map<Long, Object[]> totals = new TreeMap<Long, Object[]>();
+         for (List<Row> part : esql.scatterGatherRows(query)) {
+            for (Row row : part) {
+               Object[] total = totals.get(row.getLong(0));
+               if (total == null) {
+                  totals.put(row.getLong(0), new Object[] {row.getLong(1), row.getBigDecimal(2), row.getDate(3), row.getDate(4)});
+               } else {
+                  total[0] = (Long) total[0] + row.getLong(1);
+                  total[1] = ((BigDecimal) total[1]).add(row.getBigDecimal(2));
+                  total[2] = row.getDate(3).isBefore((LocalDate) total[2]) ? row.getDate(3) : total[2];
+                  total[3] = row.getDate(4).isAfter((LocalDate) total[3]) ? row.getDate(4) : total[3];
+               }
+            }
+         }
+         if (totals.isEmpty()) {
+            System.out.println("No bookings found for customer: " + fName + " " + lName);
+            return;
+         }
+         if (fromView) {
+            System.out.println("(" + esql._views.describe("mv_customer_spend") + ")");
+         }
+         System.out.println("CustomerID\tBookings\tTotal Spend\tFirst Booking\tLast Booking");
+         for (Map.Entry<Long, Object[]> entry : totals.entrySet()) {
+            Object[] total = entry.getValue();
+            System.out.println(entry.getKey() + "\t\t" + total[0] + "\t\t" + total[1] + "\t\t" + total[2] + "\t" + total[3]);
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end customerLifetimeSpend
+
+   public static void viewStatus(DBProject esql){
+      // Show how fresh each materialized view is, and optionally refresh one now
+      try{
+         if (esql._views == null) {
+            System.out.println("Materialized views are off, start with -Dviews=on after running views.sql");
+            return;
+         }
+         esql._views.printStatus();
+
+         System.out.print("\tEnter a view to refresh now (press ENTER to skip): ");
+         String view = in.readLine().trim();
+         if (!view.isEmpty()) {
+            esql._views.refreshNow(view);
+            esql._views.printStatus();
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end viewStatus
+
+   /**
+    * Keeps the materialized views of views.sql fresh.  Every write the
+    * program makes is reported through journal(), which counts it against
+    * the views reading that table.  A view is fresh while its oldest write
+    * not covered by a finished refresh is younger than the view's staleness
+    * budget, and reports read it only then.  A background thread on its own
+    * connections runs REFRESH MATERIALIZED VIEW CONCURRENTLY, so reports
+    * keep reading the old contents while it runs.  A view is refreshed when
+    * its oldest missing write, plus twice the last refresh time, reaches
+    * the budget.  It is refreshed sooner when the writes it will have missed
+    * by the end of a refresh, at the observed write rate, pass its write
+    * threshold.  Writes made by other clients are not seen.  To bound those,
+    * an idle view is still refreshed every IDLE_BUDGETS budgets.
+    */
+   static class ViewRefresher {
+      static final long TICK_MILLIS = 1000;
+      static final int IDLE_BUDGETS = 10;
+      // the write rate is averaged over windows of this length
+      static final long RATE_WINDOW_MILLIS = 10000;
+
+      /**
+       * One registered view: the tables it reads, how old its oldest
+       * missing write may get while reports still use it, and how many
+       * writes may pile up before it is refreshed early.
+       */
+      static class View {
+         final String name;
+         final List<String> tables;
+         final long budgetMillis;
+         final long writeThreshold;
+
+         // all guarded by the View
+         long pendingWrites = 0;         // seen since the last refresh started
+         long dirtySince = 0;            // time of the first of them, 0 when none
+         long inFlightDirtySince = 0;    // dirtySince of the writes the running refresh covers
+         long inFlightWrites = 0;
+         boolean refreshing = false;
+         long refreshedAt = 0;           // end of the last successful refresh, 0 before the first
+         long refreshMillis = 0;         // how long it took
+         long retryAt = 0;               // after a failed refresh
+         String error = null;
+         double writesPerSecond = 0;
+         long rateWindowStart = System.currentTimeMillis();
+         long rateWindowWrites = 0;
+
+         View(String name, long budgetSeconds, long writeThreshold, String... tables) {
+            this.name = name;
+            this.tables = Arrays.asList(tables);
+            this.budgetMillis = budgetSeconds * 1000;
+            this.writeThreshold = writeThreshold;
+         }
+
+         synchronized void written(long now) {
+            ++pendingWrites;
+            ++rateWindowWrites;
+            if (dirtySince == 0) {
+               dirtySince = now;
+            }
+         }
+
+         /**
+          * Time of the oldest write the view contents miss, 0 when none.
+          */
+         synchronized long oldestMissingWrite() {
+            if (inFlightDirtySince != 0 && (dirtySince == 0 || inFlightDirtySince < dirtySince)) {
+               return inFlightDirtySince;
+            }
+            return dirtySince;
+         }
+
+         synchronized boolean isFresh(long now) {
+            long oldest = oldestMissingWrite();
+            return refreshedAt > 0 && (oldest == 0 || now - oldest <= budgetMillis);
+         }
+
+         synchronized void updateRate(long now) {
+            long elapsed = now - rateWindowStart;
+            if (elapsed >= RATE_WINDOW_MILLIS) {
+               writesPerSecond = 0.5 * writesPerSecond + 0.5 * rateWindowWrites * 1000.0 / elapsed;
+               rateWindowStart = now;
+               rateWindowWrites = 0;
+            }
+         }
+
+         synchronized boolean isDue(long now) {
+            if (refreshing || now < retryAt) {
+               return false;
+            }
+            if (refreshedAt == 0) {
+               return true;
+            }
+            if (pendingWrites == 0) {
+               return now - refreshedAt >= IDLE_BUDGETS * budgetMillis;
+            }
+            // start early enough for the refresh to end inside the budget
+            if (now - dirtySince + 2 * refreshMillis >= budgetMillis) {
+               return true;
+            }
+            return pendingWrites + writesPerSecond * refreshMillis / 1000 >= writeThreshold;
+         }
+
+         synchronized void refreshStarted() {
+            refreshing = true;
+            inFlightDirtySince = dirtySince;
+            inFlightWrites = pendingWrites;
+            dirtySince = 0;
+            pendingWrites = 0;
+         }
+
+         synchronized void refreshEnded(long start, long now, String failure) {
+            refreshing = false;
+            error = failure;
+            if (failure == null) {
+               refreshedAt = now;
+               refreshMillis = now - start;
+            } else {
+               // the writes the refresh was to cover are still missing
+               if (inFlightDirtySince != 0 && (dirtySince == 0 || inFlightDirtySince < dirtySince)) {
+                  dirtySince = inFlightDirtySince;
+               }
+               pendingWrites += inFlightWrites;
+               retryAt = now + budgetMillis;
+            }
+            inFlightDirtySince = 0;
+            inFlightWrites = 0;
+         }
+      }//end View
+
+      private final DBProject esql;
+      private final Map<String, View> views = new LinkedHashMap<String, View>();
+      private final List<Connection> connections = new ArrayList<Connection>();
+      private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread thread = new Thread(r, "view-refresher");
+         thread.setDaemon(true);
+         return thread;
+      });
+
+      ViewRefresher(DBProject esql) {
+         this.esql = esql;
+         // the registry: must match the views created by views.sql
+         register(new View("mv_company_repairs", 60, 100, "Repair", "MaintenanceCompany"));
+         register(new View("mv_customer_spend", 300, 500, "Booking"));
+         register(new View("mv_room_repairs_per_year", 60, 100, "Repair"));
+      }
+
+      private void register(View view) {
+         views.put(view.name, view);
+      }
+
+      /**
+       * Drops the views missing on any shard from the registry and starts
+       * the background refreshes.  Each view is refreshed once before
+       * reports use it, since its age at startup is unknown.
+       */
+      void start() throws SQLException {
+         for (DBProject shard : esql.shards()) {
+            for (String name : new ArrayList<String>(views.keySet())) {
+               if (shard.executeQueryAndReturnRows("SELECT 1 FROM pg_matviews WHERE matviewname = '" + name + "'").isEmpty()) {
+                  System.out.println("Materialized view " + name + " not found, run views.sql");
+                  views.remove(name);
+               }
+            }
+         }
+         scheduler.scheduleWithFixedDelay(this::tick, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+         System.out.println("Refreshing materialized views: " + String.join(", ", views.keySet()));
+      }
+
+      void stop() {
+         scheduler.shutdownNow();
+         try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         for (Connection connection : connections) {
+            try {
+               connection.close();
+            } catch (SQLException e) {
+               // ignored.
+            }
+         }
+      }
+
+      void written(String table) {
+         long now = System.currentTimeMillis();
+         for (View view : views.values()) {
+            for (String t : view.tables) {
+               if (t.equalsIgnoreCase(table)) {
+                  view.written(now);
+               }
+            }
+         }
+      }
+
+      boolean isFresh(String name) {
+         View view = views.get(name);
+         return view != null && view.isFresh(System.currentTimeMillis());
+      }
+
+      /**
+       * Says where a report's numbers came from, e.g. "from mv_company_repairs, refreshed 12 s ago".
+       */
+      String describe(String name) {
+         View view = views.get(name);
+         synchronized (view) {
+            return "from " + name + ", refreshed " + (System.currentTimeMillis() - view.refreshedAt) / 1000 + " s ago";
+         }
+      }
+
+      private void tick() {
+         long now = System.currentTimeMillis();
+         for (View view : views.values()) {
+            view.updateRate(now);
+            if (view.isDue(now)) {
+               refresh(view);
+            }
+         }
+      }
+
+      private void refresh(View view) {
+         view.refreshStarted();
+         long start = System.currentTimeMillis();
+         String failure = null;
+         try {
+            if (connections.isEmpty()) {
+               for (DBProject shard : esql.shards()) {
+                  connections.add(shard.openConnection());
+               }
+            }
+            for (Connection connection : connections) {
+               Statement stmt = connection.createStatement();
+               try {
+                  stmt.executeUpdate("REFRESH MATERIALIZED VIEW CONCURRENTLY " + view.name);
+               } finally {
+                  stmt.close();
+               }
+            }
+         } catch (Exception e) {
+            // an exception would cancel the schedule, so the failure is kept on the view
+            failure = String.valueOf(e.getMessage());
+         }
+         view.refreshEnded(start, System.currentTimeMillis(), failure);
+      }
+
+      /**
+       * Refreshes a view on the scheduler thread and waits for it.
+       */
+      void refreshNow(String name) throws Exception {
+         View view = views.get(name);
+         if (view == null) {
+            System.out.println("No materialized view " + name);
+            return;
+         }
+         scheduler.submit(() -> refresh(view)).get();
+      }
+
+      void printStatus() {
+         long now = System.currentTimeMillis();
+         System.out.printf("%-26s  %-5s  %-13s  %-10s  %-14s  %-8s  %-8s  %s%n", "View", "Fresh", "Refreshed", "Refresh ms",
+                           "Pending writes", "Writes/s", "Budget s", "Error");
+         for (View view : views.values()) {
+            synchronized (view) {
+               System.out.printf("%-26s  %-5s  %-13s  %-10d  %-14d  %-8.2f  %-8d  %s%n", view.name, view.isFresh(now) ? "yes" : "no",
+                                 view.refreshing ? "running" : view.refreshedAt == 0 ? "never" : (now - view.refreshedAt) / 1000 + " s ago",
+                                 view.refreshMillis, view.pendingWrites + view.inFlightWrites, view.writesPerSecond,
+                                 view.budgetMillis / 1000, view.error == null ? "" : view.error);
+            }
+         }
+      }
+   }//end ViewRefresher
+
+   public static void laneIsolationDemo(DBProject esql){
+      // Given a number of reports and bookings, time bookings on the transaction lane with an idle
+      // report lane and again while the reports saturate the report lane; all bookings are rolled back
+      try{
+         System.out.print("\tEnter number of reports to start: ");
+         int reports = Integer.parseInt(in.readLine().trim());
+
+         System.out.print("\tEnter number of bookings to time: ");
+         int bookings = Integer.parseInt(in.readLine().trim());
+
+         List<List<String>> rooms = firstRooms(esql, 1);
+         if (rooms.isEmpty()) {
+            System.out.println("No rooms to book");
+            return;
+         }
+         String hotelID = rooms.get(0).get(0);
+         String roomNo = rooms.get(0).get(1);
+
+         long[] idle = timeBookings(esql, hotelID, roomNo, bookings, 0);
+
+         // topKHighestRoomPriceForADateRange over every booking
+         final String report = "SELECT R.hotelID, R.roomNo, MAX(B.price) AS max_price " +
+                               "FROM Room R JOIN Booking B ON R.hotelID = B.hotelID AND R.roomNo = B.roomNo " +
+                               "GROUP BY R.hotelID, R.roomNo " +
+                               "ORDER BY max_price DESC " +
+                               "LIMIT 10";
+         List<Future<Integer>> running = new ArrayList<Future<Integer>>();
+         int shed = 0;
+         for (int i = 0; i < reports; i++) {
+            try {
+               running.add(esql._reportLane.submit(() -> mergeTopK(esql.scatterGather(report), 2, 10).size()));
+            } catch (LaneFullException e) {
+               ++shed;
+            }
+         }
+         long[] busy = timeBookings(esql, hotelID, roomNo, bookings, bookings);
+
+         int finished = 0;
+         List<String> failures = new ArrayList<String>();
+         for (Future<Integer> f : running) {
+            try {
+               f.get();
+               ++finished;
+            } catch (ExecutionException e) {
+               failures.add(e.getCause().getMessage());
+            }
+         }
+
+         System.out.printf("%-20s  %-8s  %-8s  %-8s  %-8s%n", "Report lane", "p50 ms", "p95 ms", "p99 ms", "max ms");
+         for (int phase = 0; phase < 2; phase++) {
+            long[] latencies = phase == 0 ? idle : busy;
+            System.out.printf("%-20s  %-8.2f  %-8.2f  %-8.2f  %-8.2f%n", phase == 0 ? "idle" : "saturated",
+                              percentile(latencies, 0.5) / 1000.0, percentile(latencies, 0.95) / 1000.0,
+                              percentile(latencies, 0.99) / 1000.0, percentile(latencies, 1) / 1000.0);
+         }
+         System.out.println("Reports: " + reports + " offered, " + finished + " finished, " + failures.size() + " failed, " +
+                            shed + " shed (" + esql._reportLane.threads + " threads, queue of " + esql._reportLane.queueLimit + ")");
+         if (!failures.isEmpty()) {
+            System.out.println("First failure: " + failures.get(0));
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end laneIsolationDemo
+
+   /**
+    * Books the room on one day after another through the transaction lane,
+    * rolling every booking back.
+    *
+    * @return the sorted latencies in microseconds, queueing included
+    */
+   static long[] timeBookings(DBProject esql, final String hotelID, final String roomNo, int bookings, int firstDay) throws SQLException {
+      final DBProject db = esql.forHotel(hotelID);
+      long[] latencies = new long[bookings];
+      for (int i = 0; i < bookings; i++) {
+         final String day = LocalDate.of(2100, 1, 1).plusDays(firstDay + i).toString();
+         long start = System.nanoTime();
+         esql._transactionLane.run(() -> insertBooking(db.connection(), "0", hotelID, roomNo, day, 1, "1", "100", false));
+         latencies[i] = (System.nanoTime() - start) / 1000;
+      }
+      Arrays.sort(latencies);
+      return latencies;
+   }//end timeBookings
+
+   /**
+    * Returns the q-th quantile of sorted values, 0 when there are none.
+    */
+   static long percentile(long[] sorted, double q) {
+      if (sorted.length == 0) {
+         return 0;
+      }
+      return sorted[Math.min(sorted.length - 1, (int) (q * sorted.length))];
+   }//end percentile
+
+   /**
+    * One admission control lane: a fixed number of worker threads, a
+    * bounded queue in front of them, and a statement_timeout on the lane's
+    * connections.  Each worker opens its own connection to every shard, so
+    * a lane never holds more than threads x shards connections, plus
+    * threads x shards scatter threads for its scatter queries.  Work
+    * offered while the queue is full is shed with a LaneFullException
+    * instead of waiting.  Short transactional operations and heavy reports
+    * get separate lanes, so reports only ever wait behind other reports.
+    */
+   static class Lane {
+      // the lane of the current worker thread, null on other threads
+      static final ThreadLocal<Lane> CURRENT = new ThreadLocal<Lane>();
+      // the lane the database work of the menu operation on this thread goes to
+      static final ThreadLocal<Lane> ROUTED = new ThreadLocal<Lane>();
+
+      /**
+       * Whether this thread runs a menu operation whose database work has to
+       * be handed to its lane.
+       */
+      static boolean isRouted() {
+         return ROUTED.get() != null && CURRENT.get() == null;
+      }
+
+      final String name;
+      final int threads;
+      final int queueLimit;
+      final long timeoutMillis;
+      private final ThreadPoolExecutor executor;
+      private final AtomicInteger workers = new AtomicInteger();
+      private final List<Connection> connections = new ArrayList<Connection>();
+      private ExecutorService scatterPool = null;
+      // connections lent to work on threads of its own, per database; guarded by the map
+      private final Map<DBProject, List<Connection>> idle = new HashMap<DBProject, List<Connection>>();
+      private final Map<DBProject, Semaphore> lendable = new HashMap<DBProject, Semaphore>();
+
+      Lane(String name, int threads, int queueLimit, long timeoutMillis) {
+         this.name = name;
+         this.threads = threads;
+         this.queueLimit = queueLimit;
+         this.timeoutMillis = timeoutMillis;
+         this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            queueLimit > 0 ? new ArrayBlockingQueue<Runnable>(queueLimit) : new SynchronousQueue<Runnable>(),
+            r -> {
+               Thread thread = new Thread(() -> {
+                  CURRENT.set(this);
+                  r.run();
+               }, name + "-lane-" + workers.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            });
+      }
+
+      static Lane fromSystemProperties(String name, int threads, int queueLimit, long timeoutMillis) {
+         return new Lane(name, Integer.getInteger("lane." + name + ".threads", threads),
+                         Integer.getInteger("lane." + name + ".queue", queueLimit),
+                         Long.getLong("lane." + name + ".timeoutMs", timeoutMillis));
+      }
+
+      /**
+       * Queues work on the lane.
+       *
+       * @throws LaneFullException when the queue is full
+       */
+      <T> Future<T> submit(Callable<T> work) throws LaneFullException {
+         try {
+            return executor.submit(work);
+         } catch (RejectedExecutionException e) {
+            throw new LaneFullException("The " + name + " lane is full (" + executor.getActiveCount() + " running, " +
+                                        executor.getQueue().size() + " waiting), try again later");
+         }
+      }
+
+      /**
+       * Runs work on the lane and waits for its result.
+       */
+      <T> T run(Callable<T> work) throws SQLException {
+         Future<T> result = submit(work);
+         try {
+            return result.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancel(true);
+            throw new SQLException("Interrupted waiting for the " + name + " lane");
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+               throw (SQLException) e.getCause();
+            }
+            throw new SQLException(String.valueOf(e.getCause().getMessage()));
+         }
+      }
+
+      /**
+       * Opens a connection for a worker of this lane, with the lane's
+       * statement timeout.
+       */
+      Connection open(DBProject db) throws SQLException {
+         Connection connection = db.openConnection();
+         Statement stmt = connection.createStatement();
+         stmt.execute("SET statement_timeout = " + timeoutMillis);
+         stmt.close();
+         synchronized (connections) {
+            connections.add(connection);
+         }
+         return connection;
+      }
+
+      /**
+       * Lends a connection to db for lane work that runs on threads of its
+       * own, such as the fork/join tasks of the occupancy report.  At most
+       * threads connections per database are lent at once and later callers
+       * wait, so such work stays within the lane's connection budget.  Lent
+       * connections carry the lane's statement timeout and are kept for the
+       * next borrower until the lane shuts down.
+       */
+      Connection borrow(DBProject db) throws SQLException {
+         Semaphore permits;
+         synchronized (idle) {
+            permits = lendable.get(db);
+            if (permits == null) {
+               permits = new Semaphore(threads);
+               lendable.put(db, permits);
+               idle.put(db, new ArrayList<Connection>());
+            }
+         }
+         try {
+            permits.acquire();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a " + name + " lane connection");
+         }
+         try {
+            synchronized (idle) {
+               List<Connection> free = idle.get(db);
+               if (!free.isEmpty()) {
+                  return free.remove(free.size() - 1);
+               }
+            }
+            return open(db);
+         } catch (SQLException e) {
+            permits.release();
+            throw e;
+         }
+      }
+
+      /**
+       * Takes back a connection lent by borrow, ending any transaction left open.
+       */
+      void giveBack(DBProject db, Connection connection) {
+         try {
+            if (!connection.getAutoCommit()) {
+               connection.rollback();
+               connection.setAutoCommit(true);
+            }
+            synchronized (idle) {
+               idle.get(db).add(connection);
+            }
+         } catch (SQLException e) {
+            // a broken connection is not lent again
+            try {
+               connection.close();
+            } catch (SQLException ignored) {
+               // ignored.
+            }
+         }
+         synchronized (idle) {
+            lendable.get(db).release();
+         }
+      }
+
+      synchronized ExecutorService scatterPool(int shards) {
+         if (scatterPool == null) {
+            scatterPool = Executors.newFixedThreadPool(threads * shards, r -> {
+               Thread thread = new Thread(r, name + "-lane-scatter");
+               thread.setDaemon(true);
+               return thread;
+            });
+         }
+         return scatterPool;
+      }
+
+      void shutdown() {
+         executor.shutdownNow();
+         synchronized (this) {
+            if (scatterPool != null) {
+               scatterPool.shutdownNow();
+            }
+         }
+         synchronized (connections) {
+            for (Connection connection : connections) {
+               try {
+                  connection.close();
+               } catch (SQLException e) {
+                  // ignored.
+               }
+            }
+         }
+      }
+   }//end Lane
+
+   /**
+    * Work shed by a lane whose queue is full.
+    */
+   public static class LaneFullException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      public LaneFullException(String message) {
+         super(message, "53000");
+      }
+   }//end LaneFullException
+
+   public static void listRepairsMadePaged(DBProject esql){
+      // Given a Maintenance company name, list its repairs page by page, ordered by company and rID
+      try{
+         System.out.print("\tEnter Maintenance Company Name: ");
+         String companyName = in.readLine().trim();
+
+         String select = "SELECT R.mCompany, R.rID, R.repairType, R.hotelID, R.roomNo, R.repairDate " +
+                         "FROM Repair R " +
+                         "WHERE R.mCompany IN (SELECT cmpID FROM MaintenanceCompany WHERE name = '" + companyName + "')";
+         printPages(esql, "repairs", companyName, select, new String[] {"R.mCompany", "R.rID"},
+                    new String[] {"Company", "rID", "RepairType", "HotelID", "RoomNo", "RepairDate"});
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end listRepairsMadePaged
+
+   public static void listHotelRoomBookingsForAWeekPaged(DBProject esql){
+      // Given a hotelID, date - list the stays overlapping the week starting on the date page by page,
+      // ordered by check-in and bID
+      try{
+         System.out.print("\tEnter hotelID: ");
+         String hotelID = in.readLine().trim();
+
+         System.out.print("\tEnter date (YYYY-MM-DD): ");
+         String date = in.readLine().trim();
+
+         String select = "SELECT B.bookingDate, B.bID, B.roomNo, upper(B.stay) AS checkOut, B.customer " +
+                         "FROM Booking B " +
+                         "WHERE B.hotelID = " + hotelID + " AND B.stay && daterange('" + date + "', '" + date + "'::date + 7) " +
+                         // bounds the seek on (hotelID, bookingDate, bID) to stays checking in before the week ends
+                         "AND B.bookingDate < '" + date + "'::date + 7";
+         printPages(esql.forHotel(hotelID), "week", hotelID + " " + date, select, new String[] {"B.bookingDate", "B.bID"},
+                    new String[] {"Check-in", "bID", "RoomNo", "Check-out", "Customer"});
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end listHotelRoomBookingsForAWeekPaged
+
+   public static void customerBookingHistoryPaged(DBProject esql){
+      // Given a customer name, list the customer's bookings page by page, ordered by customer, check-in and bID
+      try{
+         System.out.print("\tEnter Customer First Name: ");
+         String fName = in.readLine().trim();
+
+         System.out.print("\tEnter Customer Last Name: ");
+         String lName = in.readLine().trim();
+
+         String select = "SELECT B.customer, B.bookingDate, B.bID, B.hotelID, B.roomNo, upper(B.stay) AS checkOut, B.price " +
+                         "FROM Booking B " +
+                         "WHERE B.customer IN (SELECT customerID FROM Customer WHERE fName = '" + fName + "' AND lName = '" + lName + "')";
+         printPages(esql, "history", fName + " " + lName, select, new String[] {"B.customer", "B.bookingDate", "B.bID"},
+                    new String[] {"Customer", "Check-in", "bID", "HotelID", "RoomNo", "Check-out", "Price"});
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end customerBookingHistoryPaged
+
+   /**
+    * Asks for a page size and an optional continuation token, then prints a
+    * keyset listing one page at a time.  After each page the token of the
+    * next page is printed, so the listing can also be resumed later.
+    *
+    * @param listing name of the listing, tokens of other listings are refused
+    * @param filter the user's filter values, tokens of other filters are refused
+    * @param headers the headers of the selected columns
+    */
+   static void printPages(DBProject esql, String listing, String filter, String select, String[] key, String[] headers) throws Exception {
+      System.out.print("\tEnter page size: ");
+      String size = in.readLine().trim();
+
+      while(!size.matches("[1-9]\\d{0,5}")){ // at least one row per page
+         System.out.print("\tEnter page size (1 to 999999): ");
+         size = in.readLine().trim();
+      }
+      int pageSize = Integer.parseInt(size);
+
+      System.out.print("\tEnter page token (press ENTER for the first page): ");
+      String token = in.readLine().trim();
+      String[] after = token.isEmpty() ? null : PageToken.decode(token, listing, filter);
+      if (after != null && after.length != key.length + 1) {
+         throw new IllegalArgumentException("Invalid page token");
+      }
+
+      for (int page = 1; ; page++) {
+         List<Row> rows = esql.keysetPage(select, key, after, pageSize);
+         if (rows.isEmpty()) {
+            System.out.println("No more rows");
+            return;
+         }
+         List<List<String>> table = new ArrayList<List<String>>();
+         for (int i = 0; i < Math.min(pageSize, rows.size()); i++) {
+            List<String> row = new ArrayList<String>();
+            for (int c = 0; c < headers.length; c++) {
+               row.add(rows.get(i).getString(c));
+            }
+            table.add(row);
+         }
+         System.out.println("Page " + page + ":");
+         printTable(headers, table);
+         if (rows.size() <= pageSize) {
+            return;
+         }
+
+         // the next page starts after the last row shown
+         Row last = rows.get(pageSize - 1);
+         after = new String[key.length + 1];
+         for (int c = 0; c < key.length; c++) {
+            after[c] = last.getString(c);
+         }
+         after[key.length] = last.getString(last.values.length - 1);
+         System.out.println("Next page token: " + PageToken.encode(listing, filter, after));
+         System.out.print("\tShow next page? (y/n): ");
+         if (!in.readLine().trim().equalsIgnoreCase("y")) {
+            return;
+         }
+      }
+   }//end printPages
+
+   /**
+    * Opaque continuation tokens for keyset listings: the listing name, a
+    * hash of its filter and the last key, Base64 encoded.  A token is only
+    * accepted by the listing and filter it was made for, and its key values
+    * must be numbers or dates since they end up in the query.
+    */
+   static class PageToken {
+      static String encode(String listing, String filter, String[] after) {
+         String text = listing + "\n" + Integer.toHexString(filter.hashCode()) + "\n" + String.join("\n", after);
+         return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+      }
+
+      /**
+       * @return the key and shard the token continues after
+       * @throws IllegalArgumentException when the token is not one of this listing and filter
+       */
+      static String[] decode(String token, String listing, String filter) {
+         String[] parts;
+         try {
+            parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\n");
+         } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid page token");
+         }
+         if (parts.length < 3 || !parts[0].equals(listing) || !parts[1].equals(Integer.toHexString(filter.hashCode()))) {
+            throw new IllegalArgumentException("The page token does not belong to this listing");
+         }
+         String[] after = Arrays.copyOfRange(parts, 2, parts.length);
+         for (String value : after) {
+            if (!value.matches("-?[0-9][0-9.-]*")) {
+               throw new IllegalArgumentException("Invalid page token");
+            }
+         }
+         return after;
+      }
+   }//end PageToken
+
+   /**
+    * Returns the stay index, creating it on first use.
+    */
+   static synchronized StayIndex stays(DBProject esql) {
+      if (esql._stays == null) {
+         esql._stays = new StayIndex(Long.getLong("stays.maxAgeMs", 60000));
+      }
+      return esql._stays;
+   }//end stays
+
+   /**
+    * Booked stays per room as [check-in, check-out) intervals of epoch days,
+    * kept in a tree ordered by check-in, so bookRoom can turn down a clash
+    * before asking for the rest of the booking.  The exclusion constraint on
+    * Booking keeps the stays of a room disjoint, so this order is also the
+    * order of the check-outs and no subtree maximum is needed: the stays
+    * overlapping [from, to) are the last one starting at or before from, if
+    * it ends after from, and those starting inside (from, to).  That is one
+    * O(log n) lookup plus the stays returned.
+    *
+    * A hotel's stays are loaded from its shard when first asked for and
+    * again once they are older than -Dstays.maxAgeMs, since other clients
+    * book too.  The index can therefore miss recent stays; the exclusion
+    * constraint is what keeps bookings apart, so a stay the index misses
+    * only costs a round trip.
+    */
+   static class StayIndex {
+      static class Hotel {
+         final long loadedAt = System.currentTimeMillis();
+         // roomNo -> check-in -> {check-out, bID}
+         final Map<Long, TreeMap<Long, long[]>> rooms = new HashMap<Long, TreeMap<Long, long[]>>();
+      }
+
+      private final long maxAgeMillis;
+      private final Map<Long, Hotel> hotels = new HashMap<Long, Hotel>();
+
+      StayIndex(long maxAgeMillis) {
+         this.maxAgeMillis = maxAgeMillis;
+      }
+
+      /**
+       * Returns the hotel's stays, loading them from its shard when they are
+       * missing or too old.  The load runs outside the lock so lookups of
+       * other hotels do not wait for it.
+       */
+      private Hotel hotel(DBProject esql, long hotelID) throws SQLException {
+         synchronized (this) {
+            Hotel hotel = hotels.get(hotelID);
+            if (hotel != null && System.currentTimeMillis() - hotel.loadedAt <= maxAgeMillis) {
+               return hotel;
+            }
+         }
+         Hotel hotel = new Hotel();
+         for (Row row : esql.forHotel(String.valueOf(hotelID)).executeQueryAndReturnRows(
+                 "SELECT roomNo, lower(stay), upper(stay), bID FROM Booking WHERE hotelID = " + hotelID)) {
+            add(hotel, row.getLong(0), row.getDate(1).toEpochDay(), row.getDate(2).toEpochDay(), row.getLong(3));
+         }
+         synchronized (this) {
+            hotels.put(hotelID, hotel);
+         }
+         return hotel;
+      }
+
+      private static void add(Hotel hotel, long roomNo, long checkIn, long checkOut, long bID) {
+         TreeMap<Long, long[]> stays = hotel.rooms.get(roomNo);
+         if (stays == null) {
+            stays = new TreeMap<Long, long[]>();
+            hotel.rooms.put(roomNo, stays);
+         }
+         stays.put(checkIn, new long[] {checkOut, bID});
+      }
+
+      /**
+       * Adds a stay just booked, if the hotel's stays are loaded.
+       */
+      synchronized void add(long hotelID, long roomNo, long checkIn, long checkOut, long bID) {
+         Hotel hotel = hotels.get(hotelID);
+         if (hotel != null) {
+            add(hotel, roomNo, checkIn, checkOut, bID);
+         }
+      }
+
+      /**
+       * Drops the hotel's stays, so the next lookup loads them again.
+       */
+      synchronized void forget(long hotelID) {
+         hotels.remove(hotelID);
+      }
+
+      /**
+       * Returns {check-in, check-out, bID} of the first stay of the room
+       * overlapping [from, to), or null when the room is free as far as
+       * the index knows.
+       */
+      long[] firstOverlap(DBProject esql, long hotelID, long roomNo, long from, long to) throws SQLException {
+         Hotel hotel = hotel(esql, hotelID);
+         synchronized (this) {
+            TreeMap<Long, long[]> stays = hotel.rooms.get(roomNo);
+            if (stays == null) {
+               return null;
+            }
+            Map.Entry<Long, long[]> before = stays.floorEntry(from);
+            if (before != null && before.getValue()[0] > from) {
+               return new long[] {before.getKey(), before.getValue()[0], before.getValue()[1]};
+            }
+            Map.Entry<Long, long[]> next = stays.higherEntry(from);
+            if (next != null && next.getKey() < to) {
+               return new long[] {next.getKey(), next.getValue()[0], next.getValue()[1]};
+            }
+            return null;
+         }
+      }
+   }//end StayIndex
+
+   /**
+    * Returns the booking sketches, building them from the tables on first use.
+    */
+   static BookingSketches sketches(DBProject esql) throws SQLException {
+      if (esql._sketches == null) {
+         long buildStart = System.nanoTime();
+         esql._sketches = BookingSketches.build(esql);
+         System.out.println("Built sketches over " + esql._sketches.bookings + " bookings and " + esql._sketches.repairs +
+                            " repairs in " + (System.nanoTime() - buildStart) / 1000000 + " ms");
+      }
+      return esql._sketches;
+   }//end sketches
+
+   public static void approximatePricePercentiles(DBProject esql){
+      // Given an optional hotelID, get the approximate median, 90th and 99th percentile booking price
+      try{
+         System.out.print("\tEnter hotelID (press ENTER for all hotels): ");
+         String hotelID = in.readLine().trim();
+
+         TDigest digest = sketches(esql).prices(hotelID.isEmpty() ? BookingCube.ALL : Integer.parseInt(hotelID));
+         if (digest.count() == 0) {
+            System.out.println("No bookings found");
+            return;
+         }
+         System.out.println("Booking price percentiles for " + (hotelID.isEmpty() ? "all hotels" : "hotel " + hotelID) +
+                            " over " + digest.count() + " bookings:");
+         for (double q : new double[] {0.5, 0.9, 0.99}) {
+            System.out.printf("p%-3d %.2f%n", Math.round(q * 100), digest.quantile(q) / 100);
+         }
+         System.out.println("t-digest with compression " + (int) TDigest.COMPRESSION +
+                            ": the rank of each value is typically within 1% of the requested one, closer at the tails.");
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end approximatePricePercentiles
+
+   public static void approximateDistinctCustomers(DBProject esql){
+      // Given an optional hotelID and month, get the approximate number of distinct customers who booked
+      try{
+         System.out.print("\tEnter hotelID (press ENTER for all hotels): ");
+         String hotelID = in.readLine().trim();
+
+         System.out.print("\tEnter month (YYYY-MM, press ENTER for all months): ");
+         String month = in.readLine().trim();
+
+         HyperLogLog customers = sketches(esql).customers(hotelID.isEmpty() ? BookingCube.ALL : Integer.parseInt(hotelID),
+                                                          month.isEmpty() ? BookingCube.ALL : BookingCube.month(month));
+         System.out.println("Distinct customers for " + (hotelID.isEmpty() ? "all hotels" : "hotel " + hotelID) +
+                            (month.isEmpty() ? "" : " in " + month) + ": about " + customers.estimate());
+         System.out.printf("HyperLogLog with %d registers: standard error %.1f%%, within %.1f%% 95%% of the time.%n",
+                           HyperLogLog.REGISTERS, 100 * HyperLogLog.STANDARD_ERROR, 200 * HyperLogLog.STANDARD_ERROR);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end approximateDistinctCustomers
+
+   public static void approximateTopRoomsAndCompanies(DBProject esql){
+      // Given K, get the approximate top K most booked rooms and top K maintenance companies by repairs
+      try{
+         System.out.print("\tEnter K: ");
+         int k = Integer.parseInt(in.readLine().trim());
+
+         BookingSketches sketches = sketches(esql);
+         System.out.println("Most booked rooms:");
+         System.out.println("HotelID\tRoomNo\tBookings");
+         for (long[] room : sketches.topRooms(k)) {
+            System.out.println(room[0] / BookingSketches.ROOMS_PER_HOTEL + "\t" + room[0] % BookingSketches.ROOMS_PER_HOTEL +
+                               "\t" + room[1] + (room[2] > 0 ? " (at most " + room[2] + " too high)" : ""));
+         }
+
+         Map<String, String> names = new HashMap<String, String>();
+         for (Row row : esql.shards().get(0).executeQueryAndReturnRows("SELECT cmpID, name FROM MaintenanceCompany")) {
+            names.put(row.getString(0), row.getString(1).trim());
+         }
+         System.out.println("Maintenance companies with most repairs:");
+         System.out.println("Company Name\tRepairs");
+         for (long[] company : sketches.topCompanies(k)) {
+            String name = names.get(String.valueOf(company[0]));
+            System.out.println((name == null ? "#" + company[0] : name) + "\t" + company[1] +
+                               (company[2] > 0 ? " (at most " + company[2] + " too high)" : ""));
+         }
+         System.out.printf("Space-Saving with %d counters; counts are never too low.  Count-Min (%d x %d) bounds each count " +
+                           "to at most %.1f%% of all bookings or repairs too high with %.0f%% probability.%n",
+                           BookingSketches.HEAVY_HITTERS, CountMinSketch.DEPTH, CountMinSketch.WIDTH,
+                           100 * CountMinSketch.EPSILON, 100 * (1 - CountMinSketch.DELTA));
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end approximateTopRoomsAndCompanies
+
+   /**
+    * Approximate summaries of Booking and Repair: a t-digest of prices and
+    * Space-Saving room counters per hotel, a HyperLogLog of customers per
+    * hotel and month, and Space-Saving plus Count-Min counters of repairs
+    * per company.  Per-hotel summaries are merged for answers over several
+    * hotels.  They are built in one pass over the tables and bookRoom and
+    * addRepair keep them up to date.
+    */
+   static class BookingSketches {
+      static final long ROOMS_PER_HOTEL = 1000000L;
+      static final int HEAVY_HITTERS = 64;
+
+      private final Map<Integer, TDigest> prices = new HashMap<Integer, TDigest>();
+      private final Map<Integer, Map<Integer, HyperLogLog>> customers = new HashMap<Integer, Map<Integer, HyperLogLog>>();
+      private final Map<Integer, SpaceSaving> rooms = new HashMap<Integer, SpaceSaving>();
+      private final CountMinSketch roomCounts = new CountMinSketch();
+      private final SpaceSaving companies = new SpaceSaving(HEAVY_HITTERS);
+      private final CountMinSketch companyCounts = new CountMinSketch();
+      long bookings = 0;
+      long repairs = 0;
+
+      static BookingSketches build(DBProject esql) throws SQLException {
+         BookingSketches sketches = new BookingSketches();
+         for (List<Row> part : esql.scatterGatherRows("SELECT hotelID, roomNo, customer, bookingDate, price FROM Booking")) {
+            for (Row row : part) {
+               LocalDate date = row.getDate(3);
+               sketches.addBooking(row.getInt(0), row.getInt(1), row.getLong(2),
+                                   date.getYear() * 100 + date.getMonthValue(), row.getCents(4));
+            }
+         }
+         for (List<Row> part : esql.scatterGatherRows("SELECT mCompany FROM Repair")) {
+            for (Row row : part) {
+               sketches.addRepair(row.getLong(0));
+            }
+         }
+         return sketches;
+      }
+
+      synchronized void addBooking(int hotelID, int roomNo, long customer, int month, long priceCents) {
+         TDigest digest = prices.get(hotelID);
+         if (digest == null) {
+            digest = new TDigest();
+            prices.put(hotelID, digest);
+         }
+         digest.add(priceCents);
+
+         Map<Integer, HyperLogLog> months = customers.get(hotelID);
+         if (months == null) {
+            months = new HashMap<Integer, HyperLogLog>();
+            customers.put(hotelID, months);
+         }
+         HyperLogLog hll = months.get(month);
+         if (hll == null) {
+            hll = new HyperLogLog();
+            months.put(month, hll);
+         }
+         hll.add(customer);
+
+         SpaceSaving hotelRooms = rooms.get(hotelID);
+         if (hotelRooms == null) {
+            hotelRooms = new SpaceSaving(HEAVY_HITTERS);
+            rooms.put(hotelID, hotelRooms);
+         }
+         long room = hotelID * ROOMS_PER_HOTEL + roomNo;
+         hotelRooms.add(room, 1);
+         roomCounts.add(room, 1);
+         ++bookings;
+      }
+
+      synchronized void addRepair(long company) {
+         companies.add(company, 1);
+         companyCounts.add(company, 1);
+         ++repairs;
+      }
+
+      synchronized TDigest prices(int hotelID) {
+         TDigest merged = new TDigest();
+         for (Map.Entry<Integer, TDigest> entry : prices.entrySet()) {
+            if (hotelID == BookingCube.ALL || entry.getKey() == hotelID) {
+               merged.merge(entry.getValue());
+            }
+         }
+         return merged;
+      }
+
+      synchronized HyperLogLog customers(int hotelID, int month) {
+         HyperLogLog merged = new HyperLogLog();
+         for (Map.Entry<Integer, Map<Integer, HyperLogLog>> hotel : customers.entrySet()) {
+            if (hotelID != BookingCube.ALL && hotel.getKey() != hotelID) {
+               continue;
+            }
+            for (Map.Entry<Integer, HyperLogLog> entry : hotel.getValue().entrySet()) {
+               if (month == BookingCube.ALL || entry.getKey() == month) {
+                  merged.merge(entry.getValue());
+               }
+            }
+         }
+         return merged;
+      }
+
+      /**
+       * Returns {hotelID * ROOMS_PER_HOTEL + roomNo, count, max overcount}
+       * for the K most booked rooms over all hotels.
+       */
+      synchronized List<long[]> topRooms(int k) {
+         SpaceSaving merged = new SpaceSaving(HEAVY_HITTERS);
+         for (SpaceSaving hotelRooms : rooms.values()) {
+            merged.merge(hotelRooms);
+         }
+         return tighten(merged.top(k), roomCounts);
+      }
+
+      /**
+       * Returns {cmpID, count, max overcount} for the K companies with the
+       * most repairs.
+       */
+      synchronized List<long[]> topCompanies(int k) {
+         return tighten(companies.top(k), companyCounts);
+      }
+
+      /**
+       * Both sketches only overestimate, so the smaller of the two counts is
+       * the better one.
+       */
+      private static List<long[]> tighten(List<long[]> top, CountMinSketch counts) {
+         for (long[] item : top) {
+            long estimate = counts.estimate(item[0]);
+            if (estimate < item[1]) {
+               item[2] = Math.max(0, item[2] - (item[1] - estimate));
+               item[1] = estimate;
+            }
+         }
+         return top;
+      }
+   }//end BookingSketches
+
+   /**
+    * Mixes the bits of a 64 bit value (MurmurHash3 finalizer), used to hash
+    * IDs for the sketches.
+    */
+   static long mix64(long x) {
+      x ^= x >>> 33;
+      x *= 0xff51afd7ed558ccdL;
+      x ^= x >>> 33;
+      x *= 0xc4ceb9fe1a85ec53L;
+      x ^= x >>> 33;
+      return x;
+   }//end mix64
+
+   /**
+    * Merging t-digest: a sorted list of centroids (mean, weight) where the
+    * allowed weight of a centroid shrinks towards both ends of the
+    * distribution, so extreme quantiles stay accurate.
+    */
+   static class TDigest {
+      static final double COMPRESSION = 100;
+      private static final int BUFFER = 500;
+
+      private double[] means = new double[0];
+      private double[] weights = new double[0];
+      private final double[] bufferMeans = new double[BUFFER];
+      private final double[] bufferWeights = new double[BUFFER];
+      private int buffered = 0;
+      private double total = 0;
+      private double min = Double.POSITIVE_INFINITY;
+      private double max = Double.NEGATIVE_INFINITY;
+
+      void add(double x) {
+         add(x, 1);
+      }
+
+      void add(double x, double w) {
+         if (buffered == BUFFER) {
+            compress();
+         }
+         bufferMeans[buffered] = x;
+         bufferWeights[buffered] = w;
+         ++buffered;
+         total += w;
+         min = Math.min(min, x);
+         max = Math.max(max, x);
+      }
+
+      void merge(TDigest other) {
+         other.compress();
+         for (int i = 0; i < other.means.length; i++) {
+            add(other.means[i], other.weights[i]);
+         }
+         min = Math.min(min, other.min);
+         max = Math.max(max, other.max);
+      }
+
+      long count() {
+         return Math.round(total);
+      }
+
+      private void compress() {
+         if (buffered == 0) {
+            return;
+         }
+         int n = means.length + buffered;
+         Integer[] order = new Integer[n];
+         final double[] allMeans = new double[n];
+         double[] allWeights = new double[n];
+         System.arraycopy(means, 0, allMeans, 0, means.length);
+         System.arraycopy(weights, 0, allWeights, 0, weights.length);
+         System.arraycopy(bufferMeans, 0, allMeans, means.length, buffered);
+         System.arraycopy(bufferWeights, 0, allWeights, means.length, buffered);
+         for (int i = 0; i < n; i++) {
+            order[i] = i;
+         }
+         Arrays.sort(order, (a, b) -> Double.compare(allMeans[a], allMeans[b]));
+
+         double[] newMeans = new double[n];
+         double[] newWeights = new double[n];
+         int last = 0;
+         newMeans[0] = allMeans[order[0]];
+         newWeights[0] = allWeights[order[0]];
+         double before = 0;
+         for (int i = 1; i < n; i++) {
+            double m = allMeans[order[i]];
+            double w = allWeights[order[i]];
+            double proposed = newWeights[last] + w;
+            double q = (before + proposed / 2) / total;
+            double limit = Math.max(1, 4 * total * q * (1 - q) / COMPRESSION);
+            if (proposed <= limit) {
+               newMeans[last] += (m - newMeans[last]) * w / proposed;
+               newWeights[last] = proposed;
+            } else {
+               before += newWeights[last];
+               ++last;
+               newMeans[last] = m;
+               newWeights[last] = w;
+            }
+         }
+         means = Arrays.copyOf(newMeans, last + 1);
+         weights = Arrays.copyOf(newWeights, last + 1);
+         buffered = 0;
+      }
+
+      /**
+       * Estimates the value below which a fraction q of the data lies, by
+       * interpolating between centroid centres.
+       */
+      double quantile(double q) {
+         compress();
+         if (means.length == 0) {
+            return Double.NaN;
+         }
+         double target = q * total;
+         double cumulative = 0;
+         double previousCentre = 0;
+         double previousMean = min;
+         for (int i = 0; i < means.length; i++) {
+            double centre = cumulative + weights[i] / 2;
+            if (target < centre) {
+               double span = centre - previousCentre;
+               double t = span <= 0 ? 0 : (target - previousCentre) / span;
+               return previousMean + t * (means[i] - previousMean);
+            }
+            previousCentre = centre;
+            previousMean = means[i];
+            cumulative += weights[i];
+         }
+         double span = total - previousCentre;
+         double t = span <= 0 ? 1 : (target - previousCentre) / span;
+         return previousMean + t * (max - previousMean);
+      }
+   }//end TDigest
+
+   /**
+    * HyperLogLog distinct counter with 2^12 registers.  A small set only
+    * keeps the registers it has set, as a sorted list of index << 8 | rank,
+    * and switches to the dense 4 KiB array once that list would pass 1 KiB.
+    * The sketches per hotel and month mostly see a few hundred customers,
+    * so they stay sparse; merges over many of them turn dense.
+    */
+   static class HyperLogLog {
+      private static final int P = 12;
+      static final int REGISTERS = 1 << P;
+      static final double STANDARD_ERROR = 1.04 / Math.sqrt(REGISTERS);
+      private static final int SPARSE_LIMIT = REGISTERS / 16;
+
+      private int[] sparse = new int[4];
+      private int sparseSize = 0;
+      private byte[] registers = null;   // dense registers, null while sparse
+
+      void add(long value) {
+         long hash = mix64(value);
+         int index = (int) (hash >>> (64 - P));
+         int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+         set(index, rank);
+      }
+
+      private void set(int index, int rank) {
+         if (registers != null) {
+            if (rank > registers[index]) {
+               registers[index] = (byte) rank;
+            }
+            return;
+         }
+         // entries of the same index sort right after index << 8
+         int pos = -Arrays.binarySearch(sparse, 0, sparseSize, index << 8) - 1;
+         if (pos < sparseSize && sparse[pos] >>> 8 == index) {
+            if (rank > (sparse[pos] & 0xff)) {
+               sparse[pos] = index << 8 | rank;
+            }
+            return;
+         }
+         if (sparseSize == SPARSE_LIMIT) {
+            toDense();
+            registers[index] = (byte) rank;
+            return;
+         }
+         if (sparseSize == sparse.length) {
+            sparse = Arrays.copyOf(sparse, Math.min(SPARSE_LIMIT, sparse.length * 2));
+         }
+         System.arraycopy(sparse, pos, sparse, pos + 1, sparseSize - pos);
+         sparse[pos] = index << 8 | rank;
+         ++sparseSize;
+      }
+
+      private void toDense() {
+         registers = new byte[REGISTERS];
+         for (int i = 0; i < sparseSize; i++) {
+            registers[sparse[i] >>> 8] = (byte) (sparse[i] & 0xff);
+         }
+         sparse = null;
+         sparseSize = 0;
+      }
+
+      void merge(HyperLogLog other) {
+         if (other.registers == null) {
+            for (int i = 0; i < other.sparseSize; i++) {
+               set(other.sparse[i] >>> 8, other.sparse[i] & 0xff);
+            }
+            return;
+         }
+         if (registers == null) {
+            toDense();
+         }
+         for (int i = 0; i < REGISTERS; i++) {
+            registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+         }
+      }
+
+      long estimate() {
+         double sum = 0;
+         int zeros = 0;
+         if (registers == null) {
+            zeros = REGISTERS - sparseSize;
+            sum = zeros;
+            for (int i = 0; i < sparseSize; i++) {
+               sum += Math.pow(2, -(sparse[i] & 0xff));
+            }
+         } else {
+            for (byte r : registers) {
+               sum += Math.pow(2, -r);
+               if (r == 0) {
+                  ++zeros;
+               }
+            }
+         }
+         double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+         double estimate = alpha * REGISTERS * REGISTERS / sum;
+         if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // linear counting is more accurate for small sets
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+         }
+         return Math.round(estimate);
+      }
+   }//end HyperLogLog
+
+   /**
+    * Count-Min sketch: DEPTH rows of WIDTH counters.  An estimate is never
+    * below the true count and is at most EPSILON * (total count) above it
+    * with probability 1 - DELTA.
+    */
+   static class CountMinSketch {
+      static final double EPSILON = 0.001;
+      static final double DELTA = 0.01;
+      static final int WIDTH = (int) Math.ceil(Math.E / EPSILON);
+      static final int DEPTH = (int) Math.ceil(Math.log(1 / DELTA));
+
+      private final long[][] counts = new long[DEPTH][WIDTH];
+
+      void add(long key, long count) {
+         for (int d = 0; d < DEPTH; d++) {
+            counts[d][bucket(key, d)] += count;
+         }
+      }
+
+      long estimate(long key) {
+         long estimate = Long.MAX_VALUE;
+         for (int d = 0; d < DEPTH; d++) {
+            estimate = Math.min(estimate, counts[d][bucket(key, d)]);
+         }
+         return estimate;
+      }
+
+      void merge(CountMinSketch other) {
+         for (int d = 0; d < DEPTH; d++) {
+            for (int w = 0; w < WIDTH; w++) {
+               counts[d][w] += other.counts[d][w];
+            }
+         }
+      }
+
+      private static int bucket(long key, int row) {
+         return (int) Math.floorMod(mix64(key + 0x9e3779b97f4a7c15L * (row + 1)), (long) WIDTH);
+      }
+   }//end CountMinSketch
+
+   /**
+    * Space-Saving heavy hitters: a fixed number of counters.  A new key
+    * takes over the smallest counter and inherits its count as possible
+    * overcount, so every item with more than total / capacity occurrences
+    * is kept and no count is too low.
+    */
+   static class SpaceSaving {
+      private final int capacity;
+      // key -> {count, overcount}
+      private final Map<Long, long[]> counters = new HashMap<Long, long[]>();
+
+      SpaceSaving(int capacity) {
+         this.capacity = capacity;
+      }
+
+      void add(long key, long count) {
+         long[] counter = counters.get(key);
+         if (counter != null) {
+            counter[0] += count;
+         } else if (counters.size() < capacity) {
+            counters.put(key, new long[] {count, 0});
+         } else {
+            Long smallest = null;
+            for (Map.Entry<Long, long[]> entry : counters.entrySet()) {
+               if (smallest == null || entry.getValue()[0] < counters.get(smallest)[0]) {
+                  smallest = entry.getKey();
+               }
+            }
+            long floor = counters.remove(smallest)[0];
+            counters.put(key, new long[] {floor + count, floor});
+         }
+      }
+
+      /**
+       * Count a key can have without being in the summary.
+       */
+      private long floor() {
+         if (counters.size() < capacity) {
+            return 0;
+         }
+         long floor = Long.MAX_VALUE;
+         for (long[] counter : counters.values()) {
+            floor = Math.min(floor, counter[0]);
+         }
+         return floor;
+      }
+
+      /**
+       * Adds another summary: a key missing from one side is counted at
+       * that side's floor, then the largest counters are kept.
+       */
+      void merge(SpaceSaving other) {
+         long floor = floor();
+         long otherFloor = other.floor();
+         Map<Long, long[]> merged = new HashMap<Long, long[]>();
+         for (Map.Entry<Long, long[]> entry : counters.entrySet()) {
+            long[] theirs = other.counters.get(entry.getKey());
+            long[] mine = entry.getValue();
+            merged.put(entry.getKey(), theirs == null
+               ? new long[] {mine[0] + otherFloor, mine[1] + otherFloor}
+               : new long[] {mine[0] + theirs[0], mine[1] + theirs[1]});
+         }
+         for (Map.Entry<Long, long[]> entry : other.counters.entrySet()) {
+            if (!counters.containsKey(entry.getKey())) {
+               long[] theirs = entry.getValue();
+               merged.put(entry.getKey(), new long[] {theirs[0] + floor, theirs[1] + floor});
+            }
+         }
+         List<Map.Entry<Long, long[]>> entries = new ArrayList<Map.Entry<Long, long[]>>(merged.entrySet());
+         entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+         counters.clear();
+         for (int i = 0; i < Math.min(capacity, entries.size()); i++) {
+            counters.put(entries.get(i).getKey(), entries.get(i).getValue());
+         }
+      }
+
+      /**
+       * Returns {key, count, overcount} of the K largest counters.
+       */
+      List<long[]> top(int k) {
+         List<long[]> top = new ArrayList<long[]>();
+         for (Map.Entry<Long, long[]> entry : counters.entrySet()) {
+            top.add(new long[] {entry.getKey(), entry.getValue()[0], entry.getValue()[1]});
+         }
+         top.sort((a, b) -> Long.compare(b[1], a[1]));
+         return top.size() > k ? new ArrayList<long[]>(top.subList(0, k)) : top;
+      }
+   }//end SpaceSaving
+
+   /**
+    * Booking aggregates keyed by hotel, month and room type.  The cells are
+    * loaded with one GROUP BY per shard and kept up to date by bookRoom, so
+    * slices and rollups are answered from memory.  A booking counts once,
+    * in the month of its check-in; room-nights per day are the occupancy
+    * report's job.
+    */
+   static class BookingCube {
+      // value of a dimension that is not filtered on, or rolled up
+      static final int ALL = -1;
+
+      static class Key implements Comparable<Key> {
+         final int hotelID;
+         final int month;
+         final String roomType;
+
+         Key(int hotelID, int month, String roomType) {
+            this.hotelID = hotelID;
+            this.month = month;
+            this.roomType = roomType;
+         }
+
+         @Override
+         public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+               return false;
+            }
+            Key k = (Key) o;
+            return hotelID == k.hotelID && month == k.month &&
+                   (roomType == null ? k.roomType == null : roomType.equals(k.roomType));
+         }
+
+         @Override
+         public int hashCode() {
+            return (hotelID * 31 + month) * 31 + (roomType == null ? 0 : roomType.hashCode());
+         }
+
+         @Override
+         public int compareTo(Key k) {
+            if (hotelID != k.hotelID) {
+               return Integer.compare(hotelID, k.hotelID);
+            }
+            if (month != k.month) {
+               return Integer.compare(month, k.month);
+            }
+            if (roomType == null || k.roomType == null) {
+               return roomType == null ? (k.roomType == null ? 0 : -1) : 1;
+            }
+            return roomType.compareTo(k.roomType);
+         }
+      }//end Key
+
+      static class Cell {
+         long count;
+         long sumCents;
+         long maxCents;
+         long sumPeople;
+
+         void add(long count, long sumCents, long maxCents, long sumPeople) {
+            this.count += count;
+            this.sumCents += sumCents;
+            this.maxCents = Math.max(this.maxCents, maxCents);
+            this.sumPeople += sumPeople;
+         }
+      }//end Cell
+
+      private final Map<Key, Cell> cells = new HashMap<Key, Cell>();
+
+      /**
+       * Turns YYYY-MM or YYYY-MM-DD into the month number YYYYMM.
+       */
+      static int month(String date) {
+         return Integer.parseInt(date.substring(0, 4)) * 100 + Integer.parseInt(date.substring(5, 7));
+      }
+
+      static BookingCube build(DBProject esql) throws SQLException {
+         BookingCube cube = new BookingCube();
+         String query = "SELECT B.hotelID, TO_CHAR(B.bookingDate, 'YYYY-MM'), R.roomType, " +
+                        "COUNT(*), SUM(B.price), MAX(B.price), COALESCE(SUM(B.noOfPeople), 0) " +
+                        "FROM Booking B JOIN Room R ON R.hotelID = B.hotelID AND R.roomNo = B.roomNo " +
+                        "GROUP BY B.hotelID, TO_CHAR(B.bookingDate, 'YYYY-MM'), R.roomType";
+         for (List<Row> part : esql.scatterGatherRows(query)) {
+            for (Row row : part) {
+               cube.add(row.getInt(0), month(row.getString(1)), row.getString(2), row.getLong(3),
+                        row.getCents(4), row.getCents(5), row.getLong(6));
+            }
+         }
+         return cube;
+      }
+
+      synchronized void add(int hotelID, int month, String roomType, long count, long sumCents, long maxCents, long sumPeople) {
+         Key key = new Key(hotelID, month, roomType.trim());
+         Cell cell = cells.get(key);
+         if (cell == null) {
+            cell = new Cell();
+            cells.put(key, cell);
+         }
+         cell.add(count, sumCents, maxCents, sumPeople);
+      }
+
+      synchronized int size() {
+         return cells.size();
+      }
+
+      /**
+       * Slices the cube on the given filters (ALL or null for no filter) and
+       * rolls up every dimension that is not grouped on.  The result is
+       * ordered by hotel, month and room type.
+       */
+      synchronized Map<Key, Cell> query(int hotelID, int fromMonth, int toMonth, String roomType,
+                                        boolean byHotel, boolean byMonth, boolean byRoomType) {
+         Map<Key, Cell> result = new TreeMap<Key, Cell>();
+         for (Map.Entry<Key, Cell> entry : cells.entrySet()) {
+            Key key = entry.getKey();
+            if ((hotelID != ALL && key.hotelID != hotelID) ||
+                (fromMonth != ALL && key.month < fromMonth) ||
+                (toMonth != ALL && key.month > toMonth) ||
+                (roomType != null && !key.roomType.equalsIgnoreCase(roomType))) {
+               continue;
+            }
+            Key rolled = new Key(byHotel ? key.hotelID : ALL, byMonth ? key.month : ALL, byRoomType ? key.roomType : null);
+            Cell cell = result.get(rolled);
+            if (cell == null) {
+               cell = new Cell();
+               result.put(rolled, cell);
+            }
+            Cell source = entry.getValue();
+            cell.add(source.count, source.sumCents, source.maxCents, source.sumPeople);
+         }
+         return result;
+      }
+   }//end BookingCube
+
+   /**
+    * Occupancy counters of a contiguous range of hotelIDs, indexed by
+    * hotelID - lo.  Partitions are chained in hotelID order.
+    */
+   static class OccupancyPartition {
+      final int lo;
+      final int[] rooms;
+      final long[] roomNights;
+      final long[] revenueCents;
+      OccupancyPartition next = null;
+
+      OccupancyPartition(int lo, int hi) {
+         this.lo = lo;
+         this.rooms = new int[hi - lo + 1];
+         this.roomNights = new long[hi - lo + 1];
+         this.revenueCents = new long[hi - lo + 1];
+      }
+
+      /**
+       * Prints one line per hotel that has rooms and returns how many.
+       */
+      int print(long days) {
+         int printed = 0;
+         for (int i = 0; i < rooms.length; i++) {
+            if (rooms[i] == 0) {
+               continue;
+            }
+            double occupancy = 100.0 * roomNights[i] / (rooms[i] * days);
+            System.out.printf("%-8d  %-6d  %-11d  %9.2f%%  %s%n", lo + i, rooms[i], roomNights[i], occupancy, BigDecimal.valueOf(revenueCents[i], 2));
+            ++printed;
+         }
+         return printed;
+      }
+   }//end OccupancyPartition
+
+   /**
+    * Splits a hotelID range in halves until it is small enough, then reads
+    * the rooms and bookings of that range on its own connection.
+    */
+   static class OccupancyTask extends RecursiveTask<OccupancyPartition> {
+      private static final long serialVersionUID = 1L;
+      private static final int HOTELS_PER_TASK = 64;
+      private static final int FETCH_SIZE = 1000;
+
+      private final DBProject db;
+      private final Lane lane;
+      private final int lo;
+      private final int hi;
+      private final String startDate;
+      private final String endDate;
+
+      OccupancyTask(DBProject db, Lane lane, int lo, int hi, String startDate, String endDate) {
+         this.db = db;
+         this.lane = lane;
+         this.lo = lo;
+         this.hi = hi;
+         this.startDate = startDate;
+         this.endDate = endDate;
+      }
+
+      @Override
+      protected OccupancyPartition compute() {
+         if (hi - lo < HOTELS_PER_TASK) {
+            try {
+               return load();
+            } catch (SQLException e) {
+               throw new RuntimeException("Hotels " + lo + "-" + hi + ": " + e.getMessage(), e);
+            }
+         }
+         int mid = (lo + hi) >>> 1;
+         OccupancyTask left = new OccupancyTask(db, lane, lo, mid, startDate, endDate);
+         OccupancyTask right = new OccupancyTask(db, lane, mid + 1, hi, startDate, endDate);
+         left.fork();
+         OccupancyPartition tail = right.compute();
+         OccupancyPartition head = left.join();
+         OccupancyPartition last = head;
+         while (last.next != null) {
+            last = last.next;
+         }
+         last.next = tail;
+         return head;
+      }
+
+      private OccupancyPartition load() throws SQLException {
+         OccupancyPartition part = new OccupancyPartition(lo, hi);
+         Connection connection = lane == null ? db.openConnection() : lane.borrow(db);
+         try {
+            // the bundled driver has no fetch size, so bookings are streamed through an explicit
+            // cursor, FETCH_SIZE rows at a time; the cursor needs a transaction
+            connection.setAutoCommit(false);
+
+            PreparedStatement rooms = connection.prepareStatement(
+               "SELECT hotelID, COUNT(*) FROM Room WHERE hotelID BETWEEN ? AND ? GROUP BY hotelID");
+            rooms.setInt(1, lo);
+            rooms.setInt(2, hi);
+            ResultSet rs = rooms.executeQuery();
+            while (rs.next()) {
+               part.rooms[rs.getInt(1) - lo] = rs.getInt(2);
+            }
+            rs.close();
+            rooms.close();
+
+            // every stay overlapping the range, with its nights inside the range and in total
+            PreparedStatement bookings = connection.prepareStatement(
+               "DECLARE occupancy_bookings NO SCROLL CURSOR FOR " +
+               "SELECT B.hotelID, B.price, upper(B.stay * D.days) - lower(B.stay * D.days), upper(B.stay) - lower(B.stay) " +
+               "FROM Booking B, (SELECT daterange(CAST(? AS date), CAST(? AS date) + 1) AS days) D " +
+               "WHERE B.hotelID BETWEEN ? AND ? AND B.stay && D.days");
+            bookings.setString(1, startDate);
+            bookings.setString(2, endDate);
+            bookings.setInt(3, lo);
+            bookings.setInt(4, hi);
+            bookings.execute();
+            bookings.close();
+
+            Statement fetch = connection.createStatement();
+            int fetched;
+            do {
+               rs = fetch.executeQuery("FETCH FORWARD " + FETCH_SIZE + " FROM occupancy_bookings");
+               fetched = 0;
+               while (rs.next()) {
+                  int i = rs.getInt(1) - lo;
+                  long nights = rs.getInt(3);
+                  part.roomNights[i] += nights;
+                  // a stay's price is spread evenly over its nights
+                  part.revenueCents[i] += rs.getBigDecimal(2).movePointRight(2).longValue() * nights / rs.getInt(4);
+                  ++fetched;
+               }
+               rs.close();
+            } while (fetched == FETCH_SIZE);
+            fetch.close();
+            connection.commit();
+         } finally {
+            if (lane == null) {
+               connection.close();
+            } else {
+               lane.giveBack(db, connection);
+            }
+         }
+         return part;
+      }
+   }//end OccupancyTask
+
+   /**
+    * Columnar copy of Booking used for filtered price aggregations.  Each
+    * column is a primitive array in direct (off-heap) memory and the rows are
+    * sorted by booking date, so a date range is found with two binary
+    * searches.  The range is then cut into segments that are scanned in
+    * parallel: each segment is bulk-copied into int[] and long[] chunks and
+    * summed by a loop with no data-dependent branches, a shape the JIT can
+    * vectorize.  Bookings made after the load are kept in an unsorted tail
+    * that every aggregation scans as well.
+    */
+   static class BookingColumnStore {
+      static final int ANY = -1;
+      private static final int SEGMENT_ROWS = 1 << 16;
+
+      private final int size;
+      private final IntBuffer customer;
+      private final IntBuffer hotel;
+      private final IntBuffer room;
+      private final IntBuffer day;
+      private final LongBuffer priceCents;
+      // {customer, hotel, room, day, priceCents} of the bookings appended since the load
+      private final List<long[]> tail = new ArrayList<long[]>();
+
+      private BookingColumnStore(int size) {
+         this.size = size;
+         this.customer = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+         this.hotel = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+         this.room = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+         this.day = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+         this.priceCents = ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+      }
+
+      /**
+       * Copies every booking of every shard into a new store.
+       */
+      static BookingColumnStore load(DBProject esql) throws SQLException {
+         List<long[]> rows = new ArrayList<long[]>();
+         String query = "SELECT customer, hotelID, roomNo, bookingDate, price FROM Booking";
+         for (List<Row> part : esql.scatterGatherRows(query)) {
+            for (Row row : part) {
+               rows.add(new long[] {
+                  row.getLong(0),
+                  row.getLong(1),
+                  row.getLong(2),
+                  row.getDate(3).toEpochDay(),
+                  row.getCents(4)
+               });
+            }
+         }
+         Collections.sort(rows, (a, b) -> Long.compare(a[3], b[3]));
+
+         BookingColumnStore store = new BookingColumnStore(rows.size());
+         for (int i = 0; i < rows.size(); i++) {
+            long[] row = rows.get(i);
+            store.customer.put(i, (int) row[0]);
+            store.hotel.put(i, (int) row[1]);
+            store.room.put(i, (int) row[2]);
+            store.day.put(i, (int) row[3]);
+            store.priceCents.put(i, row[4]);
+         }
+         return store;
+      }
+
+      synchronized int size() {
+         return size + tail.size();
+      }
+
+      /**
+       * Adds a booking made after the store was loaded.
+       */
+      synchronized void append(long customerID, long hotelID, long roomNo, LocalDate bookingDate, long cents) {
+         tail.add(new long[] {customerID, hotelID, roomNo, bookingDate.toEpochDay(), cents});
+      }
+
+      /**
+       * Returns {count, sum, max} of the price in cents of the bookings made
+       * between the two days (inclusive), filtered on hotel and customer
+       * unless they are ANY.
+       */
+      long[] aggregate(int hotelFilter, int customerFilter, int fromDay, int toDay) {
+         int from = firstRowOnOrAfter(fromDay);
+         int to = firstRowOnOrAfter(toDay + 1);
+         int segments = (to - from + SEGMENT_ROWS - 1) / SEGMENT_ROWS;
+         long[] totals = IntStream.range(0, segments).parallel()
+            .mapToObj(seg -> scan(hotelFilter, customerFilter, from + seg * SEGMENT_ROWS, Math.min(to, from + (seg + 1) * SEGMENT_ROWS)))
+            .reduce(new long[] {0, 0, 0}, (a, b) -> new long[] {a[0] + b[0], a[1] + b[1], Math.max(a[2], b[2])});
+
+         synchronized (this) {
+            for (long[] row : tail) {
+               if ((customerFilter == ANY || row[0] == customerFilter) && (hotelFilter == ANY || row[1] == hotelFilter) &&
+                   row[3] >= fromDay && row[3] <= toDay) {
+                  totals[0] += 1;
+                  totals[1] += row[4];
+                  totals[2] = Math.max(totals[2], row[4]);
+               }
+            }
+         }
+         return totals;
+      }
+
+      private long[] scan(int hotelFilter, int customerFilter, int from, int to) {
+         // copy the segment out of direct memory so the loop below runs over plain arrays
+         int[] hotels = new int[to - from];
+         int[] customers = new int[to - from];
+         long[] prices = new long[to - from];
+         IntBuffer hotelColumn = hotel.duplicate();
+         hotelColumn.position(from);
+         hotelColumn.get(hotels);
+         IntBuffer customerColumn = customer.duplicate();
+         customerColumn.position(from);
+         customerColumn.get(customers);
+         LongBuffer priceColumn = priceCents.duplicate();
+         priceColumn.position(from);
+         priceColumn.get(prices);
+
+         // a filter of ANY is turned into a mask that lets every row through
+         int hotelMask = hotelFilter == ANY ? 0 : -1;
+         int customerMask = customerFilter == ANY ? 0 : -1;
+         int hotelKey = hotelFilter & hotelMask;
+         int customerKey = customerFilter & customerMask;
+         long count = 0;
+         long sum = 0;
+         long max = 0;
+         for (int i = 0; i < prices.length; i++) {
+            int miss = ((hotels[i] & hotelMask) ^ hotelKey) | ((customers[i] & customerMask) ^ customerKey);
+            // 1 when the row matches, 0 otherwise
+            long hit = 1L - (((long) miss | -(long) miss) >>> 63);
+            long price = prices[i] * hit;
+            count += hit;
+            sum += price;
+            max = Math.max(max, price);
+         }
+         return new long[] {count, sum, max};
+      }
+
+      private int firstRowOnOrAfter(int target) {
+         int lo = 0;
+         int hi = size;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (day.get(mid) < target) {
+               lo = mid + 1;
+            } else {
+               hi = mid;
+            }
+         }
+         return lo;
+      }
+   }//end BookingColumnStore
+
 }//end DBProject
 
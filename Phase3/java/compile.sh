@@ -1,13 +1,16 @@
 #!/bin/sh
 # Indicate the path of the java compiler to use
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# DBProject.java uses lambdas and java.time, so it needs Java 8 or later;
+# set JAVA_HOME to a JDK 8+ install when the javac on the PATH is older
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
 
 # Export classpath with the postgressql driver
 export CLASSPATH=$CLASSPATH:$PWD/pg73jdbc3.jar
 
-# compile the java program
-javac DBProject.java
+# compile the java program, stopping with "invalid source release" on a JDK older than 8
+javac -source 1.8 -target 1.8 DBProject.java || exit 1
 
 #run the java program
 #Use your database name, port number and login
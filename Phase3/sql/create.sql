@@ -10,6 +10,11 @@ DROP TABLE IF EXISTS Repair CASCADE;
 DROP TABLE IF EXISTS Request CASCADE;
 DROP TABLE IF EXISTS Assigned CASCADE;
 
+DROP SEQUENCE IF EXISTS booking_bid_seq;
+
+-- btree_gist lets the stay exclusion constraint on Booking compare hotelID and roomNo with =
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
 -- The below sql statements drops of the enum types if they exits
 DROP TYPE IF EXISTS StaffRole CASCADE;
 DROP TYPE IF EXISTS GenderType CASCADE;
@@ -57,6 +62,7 @@ CREATE TABLE Booking( bID Numeric NOT NULL,
 					  bookingDate Date NOT NULL,
 					  noOfPeople Numeric,
 					  price Numeric(6,2) NOT NULL,
+					  stay daterange,
 					  PRIMARY KEY(bID));
 					  
 CREATE TABLE Repair( rID Numeric NOT NULL,
@@ -79,6 +85,7 @@ CREATE TABLE Assigned( asgID Numeric NOT NULL,
 					   staffID Numeric NOT NULL DEFAULT 0,
 					   hotelID Numeric NOT NULL DEFAULT 0,
 					   roomNo Numeric NOT NULL DEFAULT 0,
+					   assignDate Date,
 					   PRIMARY KEY(asgID));
 
 -- The below sql statments creates necessary Foreign Key Constraints on the above created tables
@@ -148,6 +155,12 @@ ADD CONSTRAINT assgndRoomConstraint
 FOREIGN KEY(hotelID, roomNo)
 REFERENCES Room(hotelID, roomNo)
 ON DELETE SET DEFAULT; 
+
+-- the daily bulk assignment cleans a room once per day; assignments made one room at a time have no date
+ALTER TABLE Assigned
+ADD CONSTRAINT assgndRoomDateConstraint
+UNIQUE(hotelID, roomNo, assignDate);
+
 -- data copy				 
 COPY Hotel(	hotelID,			 
 			address,	   
@@ -204,6 +217,25 @@ COPY Booking( bID,
 FROM 'booking.csv'
 WITH DELIMITER ',';	
 
+-- new bookings take their bID from this sequence instead of MAX(bID)+1
+CREATE SEQUENCE booking_bid_seq;
+SELECT setval('booking_bid_seq', (SELECT MAX(bID) FROM Booking));
+
+-- a booking is a stay from check-in (bookingDate) up to check-out; the data files hold one night stays
+UPDATE Booking SET stay = daterange(bookingDate, bookingDate + 1);
+
+ALTER TABLE Booking
+ALTER COLUMN stay SET NOT NULL;
+
+ALTER TABLE Booking
+ADD CONSTRAINT bookingStayConstraint
+CHECK(lower(stay) = bookingDate AND upper(stay) > bookingDate);
+
+-- stays of the same room can not overlap; backed by a GiST index on (hotelID, roomNo, stay)
+ALTER TABLE Booking
+ADD CONSTRAINT bookingRoomStayConstraint
+EXCLUDE USING GIST(hotelID WITH =, roomNo WITH =, stay WITH &&);
+
 COPY Repair( rID,
 			 hotelID,
 			 roomNo,
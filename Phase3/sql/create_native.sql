@@ -0,0 +1,266 @@
+-- Same schema as create.sql with native column types: INTEGER/BIGINT keys instead of
+-- unbounded Numeric and TEXT instead of blank-padded CHAR(n).
+
+-- The below sql statements drops of the tables if they exist
+DROP TABLE IF EXISTS Hotel CASCADE;
+DROP TABLE IF EXISTS Staff CASCADE;
+DROP TABLE IF EXISTS Room  CASCADE;
+DROP TABLE IF EXISTS Customer CASCADE;
+DROP TABLE IF EXISTS MaintenanceCompany CASCADE;
+
+DROP TABLE IF EXISTS Booking CASCADE;
+DROP TABLE IF EXISTS Repair CASCADE;
+DROP TABLE IF EXISTS Request CASCADE;
+DROP TABLE IF EXISTS Assigned CASCADE;
+
+DROP SEQUENCE IF EXISTS booking_bid_seq;
+
+-- btree_gist lets the stay exclusion constraint on Booking compare hotelID and roomNo with =
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+-- The below sql statements drops of the enum types if they exits
+DROP TYPE IF EXISTS StaffRole CASCADE;
+DROP TYPE IF EXISTS GenderType CASCADE;
+-- The below sql statements creates enum types
+CREATE TYPE StaffRole AS ENUM('Receptionist','HouseCleaning','Manager'); -- enum for staffRoles
+CREATE TYPE GenderType AS ENUM('Male', 'Female', 'Other'); -- enum for gender
+
+-- The below statements create necessary tables 
+CREATE TABLE Hotel( hotelID INTEGER NOT NULL, 
+                    address Text, 
+					manager INTEGER DEFAULT 0,
+					PRIMARY KEY(hotelID));
+
+CREATE TABLE Staff( SSN INTEGER NOT NULL, 
+					fName TEXT NOT NULL, 
+					lName TEXT NOT NULL, 
+					address Text,
+					role StaffRole NOT NULL,
+					employerID INTEGER NOT NULL DEFAULT 0,
+					PRIMARY KEY(SSN));
+
+CREATE TABLE Room( hotelID INTEGER NOT NULL,
+				   roomNo  INTEGER NOT NULL,
+				   roomType TEXT NOT NULL,
+				   PRIMARY KEY(hotelID, roomNo));
+
+CREATE TABLE Customer( customerID INTEGER NOT NULL,
+					   fName TEXT NOT NULL,
+					   lName TEXT NOT NULL,
+					   Address TEXT,
+					   phNo BIGINT,
+					   DOB Date,
+					   gender GenderType,
+					   PRIMARY KEY(customerID));
+
+CREATE TABLE MaintenanceCompany( cmpID INTEGER NOT NULL,
+								 name TEXT NOT NULL,
+								 address TEXT,
+								 isCertified Boolean NOT NULL,
+								 PRIMARY KEY(cmpID));
+CREATE TABLE Booking( bID BIGINT NOT NULL,
+					  customer INTEGER NOT NULL DEFAULT 0,
+					  hotelID INTEGER NOT NULL DEFAULT 0,
+					  roomNo INTEGER NOT NULL DEFAULT 0,
+					  bookingDate Date NOT NULL,
+					  noOfPeople INTEGER,
+					  price Numeric(6,2) NOT NULL,
+					  stay daterange,
+					  PRIMARY KEY(bID));
+					  
+CREATE TABLE Repair( rID BIGINT NOT NULL,
+					 hotelID INTEGER NOT NULL DEFAULT 0,
+					 roomNo INTEGER NOT NULL DEFAULT 0,
+					 mCompany INTEGER NOT NULL DEFAULT 0,
+					 repairDate Date NOT NULL,
+					 description TEXT,
+					 repairType TEXT,
+					 PRIMARY KEY(rID));
+					 
+CREATE TABLE Request( reqID BIGINT NOT NULL,
+					  managerID INTEGER NOT NULL DEFAULT 0,
+					  repairID BIGINT NOT NULL DEFAULT 0,
+					  requestDate Date NOT NULL,
+					  description TEXT,
+					  PRIMARY KEY(reqID));
+					  
+CREATE TABLE Assigned( asgID BIGINT NOT NULL,
+					   staffID INTEGER NOT NULL DEFAULT 0,
+					   hotelID INTEGER NOT NULL DEFAULT 0,
+					   roomNo INTEGER NOT NULL DEFAULT 0,
+					   assignDate Date,
+					   PRIMARY KEY(asgID));
+
+-- The below sql statments creates necessary Foreign Key Constraints on the above created tables
+ALTER TABLE Hotel
+ADD CONSTRAINT managerConstraint
+FOREIGN KEY(manager)
+REFERENCES Staff(SSN)
+ON DELETE SET DEFAULT;
+ 					
+ALTER TABLE Staff
+ADD CONSTRAINT employerConstraint
+FOREIGN KEY(employerID)
+REFERENCES Hotel(hotelID)
+ON DELETE CASCADE;
+
+					   
+ALTER TABLE Room
+ADD CONSTRAINT weakEntityConstraint
+FOREIGN KEY(hotelID)
+REFERENCES Hotel(hotelID)
+ON DELETE CASCADE;
+
+ALTER TABLE Booking
+ADD CONSTRAINT bookingCustomerConstraint
+FOREIGN KEY(customer)
+REFERENCES Customer(customerID)
+ON DELETE SET DEFAULT;
+
+ALTER TABLE Booking
+ADD CONSTRAINT bookingRoomConstraint
+FOREIGN KEY(hotelID, roomNo)
+REFERENCES Room(hotelID, roomNo)
+ON DELETE SET DEFAULT;	
+
+ALTER TABLE Repair
+ADD CONSTRAINT repairMcmpConstraint
+FOREIGN KEY(mCompany)
+REFERENCES MaintenanceCompany(cmpID)
+ON DELETE SET DEFAULT;
+
+ALTER TABLE Repair
+ADD CONSTRAINT repairRoomConstraint
+FOREIGN KEY(hotelID, roomNo)
+REFERENCES Room(hotelID, roomNo)
+ON DELETE SET DEFAULT;   
+
+ALTER TABLE Request
+ADD CONSTRAINT requestMngrConstraint
+FOREIGN KEY(managerID)
+REFERENCES Staff(SSN)
+ON DELETE SET DEFAULT;
+
+ALTER TABLE Request
+ADD CONSTRAINT requestRepairConstraint
+FOREIGN KEY(repairID)
+REFERENCES Repair(rID)
+ON DELETE SET DEFAULT;
+
+ALTER TABLE Assigned
+ADD CONSTRAINT assgndStaffConstraint
+FOREIGN KEY(staffID)
+REFERENCES Staff(SSN)
+ON DELETE SET DEFAULT;
+
+ALTER TABLE Assigned
+ADD CONSTRAINT assgndRoomConstraint
+FOREIGN KEY(hotelID, roomNo)
+REFERENCES Room(hotelID, roomNo)
+ON DELETE SET DEFAULT; 
+
+-- the daily bulk assignment cleans a room once per day; assignments made one room at a time have no date
+ALTER TABLE Assigned
+ADD CONSTRAINT assgndRoomDateConstraint
+UNIQUE(hotelID, roomNo, assignDate);
+
+-- data copy				 
+COPY Hotel(	hotelID,			 
+			address,	   
+            manager)
+FROM 'hotel.csv'
+WITH DELIMITER ',';
+
+COPY Staff(SSN, 
+			fName, 
+			lName, 
+			address,
+			role,
+			employerID)
+FROM 'staff.csv'
+WITH DELIMITER ',';	
+
+UPDATE hotel 
+SET manager = Staff.ssn
+FROM Staff
+WHERE hotel.hotelID = Staff.employerID AND Staff.role = 'Manager'; 
+
+
+COPY Room(	hotelID,
+		    roomNo,
+			roomType)
+FROM 'room.csv'
+WITH DELIMITER ',';	
+
+COPY Customer(	customerID,
+			    fName,
+			    lName,
+			    Address,
+				phNo,
+				DOB,
+			    gender)
+FROM 'customer.csv'
+WITH DELIMITER ',';	
+
+
+COPY MaintenanceCompany(cmpID,
+						name,
+						address,
+						isCertified)
+FROM 'maintenanceCompany.csv'
+WITH DELIMITER ',';	
+
+COPY Booking( bID,
+			  customer,
+			  hotelID,
+			  roomNo,
+			  bookingDate,
+			  noOfPeople,
+			  price)
+FROM 'booking.csv'
+WITH DELIMITER ',';	
+
+-- new bookings take their bID from this sequence instead of MAX(bID)+1
+CREATE SEQUENCE booking_bid_seq;
+SELECT setval('booking_bid_seq', (SELECT MAX(bID) FROM Booking));
+
+-- a booking is a stay from check-in (bookingDate) up to check-out; the data files hold one night stays
+UPDATE Booking SET stay = daterange(bookingDate, bookingDate + 1);
+
+ALTER TABLE Booking
+ALTER COLUMN stay SET NOT NULL;
+
+ALTER TABLE Booking
+ADD CONSTRAINT bookingStayConstraint
+CHECK(lower(stay) = bookingDate AND upper(stay) > bookingDate);
+
+-- stays of the same room can not overlap; backed by a GiST index on (hotelID, roomNo, stay)
+ALTER TABLE Booking
+ADD CONSTRAINT bookingRoomStayConstraint
+EXCLUDE USING GIST(hotelID WITH =, roomNo WITH =, stay WITH &&);
+
+COPY Repair( rID,
+			 hotelID,
+			 roomNo,
+			 mCompany,
+			 repairDate,
+			 description,
+			 repairType)
+FROM 'repair.csv'
+WITH DELIMITER ',';	
+
+COPY Request(reqID,
+			 managerID,
+			 repairID,
+			 requestDate,
+			 description)
+FROM 'request.csv'
+WITH DELIMITER ',';		
+
+COPY Assigned(asgID,
+			  staffID,
+			  hotelID,
+			  roomNo)
+FROM 'assigned.csv'
+WITH DELIMITER ',';		
+	
\ No newline at end of file
@@ -2,8 +2,12 @@ DROP INDEX IF EXISTS idx_customer_name;
 DROP INDEX IF EXISTS idx_staff_ssn;
 DROP INDEX IF EXISTS idx_booking_hotel_date;
 DROP INDEX IF EXISTS idx_booking_customer;
+DROP INDEX IF EXISTS idx_booking_hotel_date_bid;
+DROP INDEX IF EXISTS idx_booking_customer_date_bid;
 DROP INDEX IF EXISTS idx_booking_date;
+DROP INDEX IF EXISTS idx_booking_hotel_stay;
 DROP INDEX IF EXISTS idx_repair_company;
+DROP INDEX IF EXISTS idx_repair_company_rid;
 DROP INDEX IF EXISTS idx_repair_hotel_room;
 DROP INDEX IF EXISTS idx_mcompany_name;
 DROP INDEX IF EXISTS idx_room_hotel;
@@ -14,17 +18,17 @@ ON Customer
 USING BTREE
 (fName, lName);
 
--- Booking Lookups by Hotel & Date 3, 4, 5
-CREATE INDEX idx_booking_hotel_date
+-- Booking Lookups by Hotel & Date 3, 4, 5, keyset pages of a week 31
+CREATE INDEX idx_booking_hotel_date_bid
 ON Booking
 USING BTREE
-(hotelID, bookingDate);
+(hotelID, bookingDate, bID);
 
--- Booking Lookups by Customer 7, 8
-CREATE INDEX idx_booking_customer
+-- Booking Lookups by Customer 7, 8, keyset pages of a booking history 32
+CREATE INDEX idx_booking_customer_date_bid
 ON Booking
 USING BTREE
-(customer);
+(customer, bookingDate, bID);
 
 -- General Booking Date Range 6
 CREATE INDEX idx_booking_date
@@ -32,11 +36,17 @@ ON Booking
 USING BTREE
 (bookingDate);
 
--- Repair Lookups by Company 9, 10
-CREATE INDEX idx_repair_company
+-- Booked Stays by Hotel & Date Range 8, 9, 10 (needs btree_gist, see create.sql)
+CREATE INDEX idx_booking_hotel_stay
+ON Booking
+USING GIST
+(hotelID, stay);
+
+-- Repair Lookups by Company 9, 10, keyset pages of repairs 30
+CREATE INDEX idx_repair_company_rid
 ON Repair
 USING BTREE
-(mCompany);
+(mCompany, rID);
 
 -- Repair Lookups by Room 11
 CREATE INDEX idx_repair_hotel_room
@@ -0,0 +1,31 @@
+#!/bin/bash
+# Times queries.sql on the Numeric/CHAR schema (create.sql) and on the native type schema
+# (create_native.sql), both with indexes and with the data grown by scale.sql.
+# Usage: ./measure_native.sh [scale factor, default 20]
+
+FACTOR=${1:-20}
+DB=$USER"_DB"
+
+run_queries() {
+	cat <(echo '\timing') queries.sql | psql -h localhost -p $PGPORT $DB | grep Time | awk -F "Time: " '{print $2}' | awk '{print $1}'
+}
+
+load() {
+	psql -h localhost -p $PGPORT $DB < $1 > /dev/null
+	psql -h localhost -p $PGPORT $DB < index.sql > /dev/null
+	psql -h localhost -p $PGPORT -v factor=$FACTOR $DB < scale.sql > /dev/null
+}
+
+echo "Loading create.sql (scale factor $FACTOR)..."
+load create.sql
+sleep 5
+run_queries > /tmp/measure_numeric.$$
+
+echo "Loading create_native.sql (scale factor $FACTOR)..."
+load create_native.sql
+sleep 5
+run_queries > /tmp/measure_native.$$
+
+echo "Query  Numeric/CHAR(ms)  Native(ms)"
+paste /tmp/measure_numeric.$$ /tmp/measure_native.$$ | awk '{printf "Query%-2d %16s  %10s\n", NR, $1, $2}'
+rm -f /tmp/measure_numeric.$$ /tmp/measure_native.$$
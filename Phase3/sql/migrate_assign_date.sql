@@ -0,0 +1,14 @@
+-- Adds the day of an assignment to a database created before Assigned had it.
+-- Existing assignments keep no date; the daily bulk assignment fills it in so
+-- running it again for the same day skips the rooms it already assigned.
+-- create.sql already builds this schema.
+BEGIN;
+
+ALTER TABLE Assigned
+ADD COLUMN assignDate Date;
+
+ALTER TABLE Assigned
+ADD CONSTRAINT assgndRoomDateConstraint
+UNIQUE(hotelID, roomNo, assignDate);
+
+COMMIT;
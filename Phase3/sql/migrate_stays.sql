@@ -0,0 +1,30 @@
+-- Turns an existing database from one row per booked night into stays.
+-- Every existing booking becomes a one night stay starting at its bookingDate;
+-- new bookings may cover several nights.  create.sql already builds this schema.
+BEGIN;
+
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+ALTER TABLE Booking
+ADD COLUMN stay daterange;
+
+UPDATE Booking SET stay = daterange(bookingDate, bookingDate + 1);
+
+ALTER TABLE Booking
+ALTER COLUMN stay SET NOT NULL;
+
+ALTER TABLE Booking
+ADD CONSTRAINT bookingStayConstraint
+CHECK(lower(stay) = bookingDate AND upper(stay) > bookingDate);
+
+-- the exclusion constraint replaces the once per day unique constraint
+ALTER TABLE Booking
+DROP CONSTRAINT IF EXISTS bookingRoomDateConstraint;
+
+ALTER TABLE Booking
+ADD CONSTRAINT bookingRoomStayConstraint
+EXCLUDE USING GIST(hotelID WITH =, roomNo WITH =, stay WITH &&);
+
+COMMIT;
+
+ANALYZE Booking;
@@ -24,8 +24,8 @@ VALUES (5001, 1, 1, 1, '2023-11-01', 2, 150.00);
 -- 6. assignHouseCleaningToRoom 
 SELECT employerID FROM Staff WHERE SSN = 1;
 SELECT MAX(asgID) FROM Assigned;
-INSERT INTO Assigned(asgID, staffID, hotelID, roomNo) 
-VALUES (5001, 1, 1, 1);
+INSERT INTO Assigned(asgID, staffID, hotelID, roomNo, assignDate) 
+VALUES (5001, 1, 1, 1, '2023-11-01');
 
 -- 7. repairRequest 
 SELECT role FROM Staff WHERE SSN = 1;
@@ -36,22 +36,21 @@ VALUES (5001, 1, 1, '2023-11-01', 'Test Request');
 */
 -- 8. numberOfAvailableRooms 
 SELECT (SELECT COUNT(*) FROM Room WHERE hotelID = 1) - 
-       (SELECT COUNT(*) FROM Booking WHERE hotelID = 1 AND bookingDate = '2015-05-12');
+       (SELECT COUNT(*) FROM Booking WHERE hotelID = 1 AND stay @> '2015-05-12'::date);
 
 -- 9. numberOfBookedRooms 
-SELECT COUNT(*) FROM Booking WHERE hotelID = 1 AND bookingDate = '2015-05-12';
+SELECT COUNT(*) FROM Booking WHERE hotelID = 1 AND stay @> '2015-05-12'::date;
 
 -- 10. listHotelRoomBookingsForAWeek 
-SELECT roomNo, bookingDate FROM Booking 
+SELECT roomNo, lower(stay), upper(stay) FROM Booking 
 WHERE hotelID = 1 
 AND roomNo = 1 
-AND bookingDate >= '2015-05-12' 
-AND bookingDate < '2015-05-12'::date + interval '7 days';
+AND stay && daterange('2015-05-12', '2015-05-12'::date + 7);
 
 -- 11. topKHighestRoomPriceForADateRange 
 SELECT R.hotelID, R.roomNo, MAX(B.price) AS max_price 
 FROM Room R JOIN Booking B ON R.hotelID = B.hotelID AND R.roomNo = B.roomNo 
-WHERE B.bookingDate >= '2000-01-01' AND B.bookingDate <= '2020-12-31' 
+WHERE B.stay && daterange('2000-01-01', '2020-12-31', '[]') 
 GROUP BY R.hotelID, R.roomNo 
 ORDER BY max_price DESC 
 LIMIT 5;
@@ -69,8 +68,7 @@ FROM Booking B, Customer C
 WHERE B.customer = C.customerID 
 AND B.hotelID = 1 
 AND C.fName = 'rzqs' AND C.lName = 'eyeg' 
-AND B.bookingDate >= '2000-01-01' 
-AND B.bookingDate <= '2020-12-31';
+AND B.stay && daterange('2000-01-01', '2020-12-31', '[]');
 
 -- 14. listRepairsMade 
 SELECT R.repairType, R.hotelID, R.roomNo 
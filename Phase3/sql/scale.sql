@@ -0,0 +1,20 @@
+-- Grows Booking and Repair to (factor + 1) times their size so timings can be taken at scale.
+-- Run with: psql -v factor=20 <db> < scale.sql
+-- Copy k of a row is moved k days later; copies whose stay would overlap another stay of the room are skipped.
+
+INSERT INTO Booking(bID, customer, hotelID, roomNo, bookingDate, noOfPeople, price, stay)
+SELECT B.bID + k * M.maxID, B.customer, B.hotelID, B.roomNo, B.bookingDate + k, B.noOfPeople, B.price,
+       daterange(lower(B.stay) + k, upper(B.stay) + k)
+FROM Booking B, generate_series(1, :factor) AS k, (SELECT MAX(bID) + 1 AS maxID FROM Booking) M
+WHERE B.bID > 0
+ON CONFLICT DO NOTHING;
+
+SELECT setval('booking_bid_seq', (SELECT MAX(bID) FROM Booking));
+
+INSERT INTO Repair(rID, hotelID, roomNo, mCompany, repairDate, description, repairType)
+SELECT R.rID + k * M.maxID, R.hotelID, R.roomNo, R.mCompany, R.repairDate + k, R.description, R.repairType
+FROM Repair R, generate_series(1, :factor) AS k, (SELECT MAX(rID) + 1 AS maxID FROM Repair) M
+WHERE R.rID > 0;
+
+ANALYZE Booking;
+ANALYZE Repair;
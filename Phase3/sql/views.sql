@@ -0,0 +1,45 @@
+-- Materialized views behind the report operations.  Run after create.sql
+-- (and after create_native.sql, or on every shard) and start DBProject with
+-- -Dviews=on; the refresh scheduler in DBProject.ViewRefresher keeps them
+-- up to date and its registry must list the same view names.
+--
+-- Each view has a unique index so it can be refreshed with
+-- REFRESH MATERIALIZED VIEW CONCURRENTLY, which keeps the old contents
+-- readable while the new ones are computed.
+DROP MATERIALIZED VIEW IF EXISTS mv_company_repairs;
+DROP MATERIALIZED VIEW IF EXISTS mv_customer_spend;
+DROP MATERIALIZED VIEW IF EXISTS mv_room_repairs_per_year;
+
+-- Repairs per maintenance company, for topKMaintenanceCompany 15
+CREATE MATERIALIZED VIEW mv_company_repairs AS
+SELECT M.cmpID, M.name, COUNT(R.rID) AS repair_count
+FROM MaintenanceCompany M LEFT JOIN Repair R ON M.cmpID = R.mCompany
+GROUP BY M.cmpID, M.name;
+
+CREATE UNIQUE INDEX mv_company_repairs_key
+ON mv_company_repairs
+USING BTREE
+(cmpID);
+
+-- Lifetime bookings and spend per customer
+CREATE MATERIALIZED VIEW mv_customer_spend AS
+SELECT B.customer, COUNT(*) AS bookings, SUM(B.price) AS total_spend,
+       MIN(B.bookingDate) AS first_booking, MAX(B.bookingDate) AS last_booking
+FROM Booking B
+GROUP BY B.customer;
+
+CREATE UNIQUE INDEX mv_customer_spend_key
+ON mv_customer_spend
+USING BTREE
+(customer);
+
+-- Repairs per room and year, for numberOfRepairsForEachRoomPerYear 16
+CREATE MATERIALIZED VIEW mv_room_repairs_per_year AS
+SELECT R.hotelID, R.roomNo, EXTRACT(YEAR FROM R.repairDate)::int AS repair_year, COUNT(R.rID) AS repair_count
+FROM Repair R
+GROUP BY R.hotelID, R.roomNo, repair_year;
+
+CREATE UNIQUE INDEX mv_room_repairs_per_year_key
+ON mv_room_repairs_per_year
+USING BTREE
+(hotelID, roomNo, repair_year);